@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Regression gate for the JMH suite: compares two result files written with -prof gc -rf csv and
+ * exits with 1 if a benchmark regressed, that is if its throughput is below (100 - tolerance)% of
+ * the baseline's, or it allocates more than 8 bytes/op (one small object header) over the
+ * baseline's gc.alloc.rate.norm. Benchmarks missing from either file are skipped.
+ *
+ * Example:
+ *   gradle jmh -PjmhArgs='-prof gc -rf csv -rff baseline.csv'         before the change
+ *   gradle jmh -PjmhArgs='-prof gc -rf csv -rff current.csv'          after it
+ *   java -cp build/classes/java/jmh DNSBenchCompare baseline.csv current.csv [--tolerance 10]
+ */
+public class DNSBenchCompare {
+    private static final String ALLOCATION = ":gc.alloc.rate.norm";
+    private static final double MAX_EXTRA_BYTES = 8;
+
+    public static void main(String[] args) throws IOException {
+        double tolerancePercent = 10;
+        Path[] files = new Path[2];
+        int fileCount = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("--tolerance")) {
+                tolerancePercent = Double.parseDouble(args[++i]);
+            } else if (fileCount < 2) {
+                files[fileCount++] = Path.of(args[i]);
+            }
+        }
+        if (fileCount < 2) {
+            System.out.println("Usage: DNSBenchCompare <baseline.csv> <current.csv> [--tolerance <percent>]");
+            System.exit(2);
+        }
+
+        Map<String, Double> baseline = read(files[0]);
+        Map<String, Double> current = read(files[1]);
+        boolean passed = true;
+        System.out.printf("%-44s %10s %12s%n", "Benchmark", "ops/s", "B/op");
+        for (Map.Entry<String, Double> result : baseline.entrySet()) {
+            String name = result.getKey();
+            if (name.contains(":") || !current.containsKey(name)) continue;
+            double change = (current.get(name) - result.getValue()) * 100 / result.getValue();
+            boolean slower = change < -tolerancePercent;
+            Double baselineBytes = baseline.get(name + ALLOCATION);
+            Double currentBytes = current.get(name + ALLOCATION);
+            boolean measured = baselineBytes != null && currentBytes != null;
+            boolean allocates = measured && currentBytes > baselineBytes + MAX_EXTRA_BYTES;
+            System.out.printf(Locale.ROOT, "%-44s %+9.1f%% %12s%s%n", name, change,
+                    measured ? String.format(Locale.ROOT, "%+.1f", currentBytes - baselineBytes) : "-",
+                    slower || allocates ? "  REGRESSION" : "");
+            passed &= !slower && !allocates;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    // Benchmark (and secondary result, "name:gc.alloc.rate.norm") -> score, from JMH's CSV format
+    private static Map<String, Double> read(Path file) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            String[] fields = line.split(",");
+            if (fields.length < 7 || !fields[0].startsWith("\"") || fields[0].equals("\"Benchmark\"")) continue;
+            String name = fields[0].substring(1, fields[0].length() - 1);
+            scores.put(name, Double.parseDouble(fields[4]));
+        }
+        return scores;
+    }
+}
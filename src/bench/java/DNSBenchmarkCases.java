@@ -0,0 +1,123 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+/*
+ * The cases of the JMH suite (bench.DNSBenchmarks, which also says how to run it), built next to
+ * the server's classes because code in a named package cannot refer to them:
+ *
+ *   header.parse                reading the header fields of a query
+ *   question.parse              DNSQuestion.readFrom() on an uncompressed name
+ *   question.parse.compressed   the same for a name ending in a compression pointer
+ *   response.encode             header + question echo + synthetic and cached A records
+ *   resolve.default             resolveQuery() without resolver or zones (synthetic answer)
+ *   resolve.zone                resolveQuery() answered from an authoritative zone
+ *   resolve.cached              resolveQuery() with the forwarder, answered from the cache
+ *   resolve.forwarded           resolveQuery() with every question sent to a local stub resolver
+ *
+ * Everything the cases use is built by the constructor. Each case returns a value that depends on
+ * its work, for the benchmark to consume.
+ */
+public final class DNSBenchmarkCases implements AutoCloseable {
+    private final Map<String, IntSupplier> cases = new HashMap<>();
+    private final DNSStubResolver stub;
+    private final DNSForwarder forwarder;
+
+    public DNSBenchmarkCases() throws IOException {
+        ByteBuffer query = query(name("www.example.com"), DNSRecord.TYPE_A);
+        cases.put("header.parse", () -> DNSHeader.getId(query) + DNSHeader.getOC(query) + (DNSHeader.isRD(query) ? 1 : 0)
+                + DNSHeader.getQuestionCount(query) + DNSHeader.getAdditionalCount(query));
+
+        cases.put("question.parse", () -> {
+            query.position(DNSHeader.SIZE);
+            return DNSQuestion.readFrom(query).getType();
+        });
+
+        // Two questions, the second one's name is "mail" + a pointer to "example.com" in the first
+        ByteBuffer compressed = ByteBuffer.allocate(512);
+        compressed.put(query.array(), 0, query.limit());
+        DNSHeader.setQuestionCount(compressed, 2);
+        int secondQuestion = compressed.position();
+        compressed.put(new byte[] {4, 'm', 'a', 'i', 'l', (byte) 0xC0, 16}).putShort(DNSRecord.TYPE_A).putShort((short) 1);
+        compressed.flip();
+        cases.put("question.parse.compressed", () -> {
+            compressed.position(secondQuestion);
+            return DNSQuestion.readFrom(compressed).getType();
+        });
+
+        ByteBuffer response = ByteBuffer.allocate(DNSWorkerPool.MAX_MESSAGE_SIZE);
+        NameCompressor compressor = new NameCompressor();
+        DNSAnswer answer = new DNSAnswer("8.8.8.8");
+        DNSRecord record = new DNSRecord(name("www.example.com"), DNSRecord.TYPE_A, (short) 1, 300, new byte[] {10, 0, 0, 1});
+        cases.put("response.encode", () -> {
+            response.clear();
+            compressor.reset();
+            response.put(query.array(), 0, query.limit());
+            DNSHeader.setQR(response, true);
+            DNSHeader.setAnswerCount(response, 2);
+            answer.writeToBuffer(response, DNSHeader.SIZE, compressor);
+            record.writeToBuffer(response, 300, compressor);
+            return response.position();
+        });
+
+        DNSQueryHandler synthetic = new DNSQueryHandler(null, null, null, EDNS.DEFAULT_UDP_SIZE);
+        cases.put("resolve.default", () -> synthetic.resolveQuery(query, response, 512));
+
+        DNSZones zones = new DNSZones();
+        ByteArrayOutputStream soa = new ByteArrayOutputStream();
+        soa.writeBytes(name("ns1.example.com"));
+        soa.writeBytes(name("hostmaster.example.com"));
+        soa.writeBytes(ByteBuffer.allocate(20).putInt(1).putInt(7200).putInt(3600).putInt(1209600).putInt(300).array());
+        zones.add(name("example.com"), DNSRecord.TYPE_SOA, 3600, soa.toByteArray());
+        zones.add(name("www.example.com"), DNSRecord.TYPE_A, 300, new byte[] {(byte) 192, 0, 2, 1});
+        zones.seal();
+        DNSQueryHandler authoritative = new DNSQueryHandler(null, null, zones, EDNS.DEFAULT_UDP_SIZE);
+        cases.put("resolve.zone", () -> authoritative.resolveQuery(query, response, 512));
+
+        stub = new DNSStubResolver();
+        forwarder = new DNSForwarder(stub.getAddress());
+        DNSQueryHandler cached = new DNSQueryHandler(new DNSCache(64L * 1024 * 1024), forwarder, null, EDNS.DEFAULT_UDP_SIZE);
+        cases.put("resolve.cached", () -> cached.resolveQuery(query, response, 512));
+
+        // A zero-sized cache admits nothing, so every query makes the upstream round trip
+        DNSQueryHandler forwarded = new DNSQueryHandler(new DNSCache(0), forwarder, null, EDNS.DEFAULT_UDP_SIZE);
+        cases.put("resolve.forwarded", () -> forwarded.resolveQuery(query, response, 512));
+    }
+
+    public IntSupplier get(String name) {
+        IntSupplier operation = cases.get(name);
+        if (operation == null) throw new IllegalArgumentException("No benchmark case " + name);
+        return operation;
+    }
+
+    @Override
+    public void close() throws IOException {
+        forwarder.close();
+        stub.close();
+    }
+
+    // Query with one question and no EDNS, ready to be read from position 0
+    private static ByteBuffer query(byte[] name, short type) {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        DNSHeader.writeEmpty(query, (short) 0x1234);
+        DNSHeader.setQR(query, false);
+        DNSHeader.setRD(query, true);
+        DNSHeader.setQuestionCount(query, 1);
+        query.put(name).putShort(type).putShort((short) 1);
+        query.flip();
+        return query;
+    }
+
+    private static byte[] name(String dotted) {
+        ByteArrayOutputStream name = new ByteArrayOutputStream();
+        for (String label : dotted.split("\\.")) {
+            name.write(label.length());
+            name.writeBytes(label.getBytes());
+        }
+        name.write(0);
+        return name.toByteArray();
+    }
+}
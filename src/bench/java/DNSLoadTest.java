@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * End-to-end load generator: sends a query mix to a running server at a fixed rate over UDP or
+ * TCP and reports throughput, latency percentiles and the drop rate.
+ *
+ * Open loop: query i is due at start + i / qps whatever happened to earlier ones, and its latency
+ * is measured from that due time rather than from when it actually left. A stalled server (or a
+ * sender that fell behind) therefore shows up in the percentiles instead of silently lowering the
+ * offered load (coordinated omission).
+ *
+ * Query mix:
+ *   hot names       --hot-percent of the queries ask for one of 100 names, which stay cached
+ *   cold names      the rest pick from --names distinct names, mostly cache misses
+ *   multi-question  --multi-percent of the packets carry a second question whose name is
+ *                   compressed against the first
+ *
+ * Responses are matched by ID: every client socket / connection has its own 65536 slots holding
+ * the due time of the query in flight with that ID.
+ *
+ * With --upstream-port (or --in-process) a fake upstream with injected latency and loss is started
+ * for the server's --resolver. --in-process also runs Main in this JVM on port 2053; arguments
+ * after "--" are passed on to it.
+ *
+ * Example:
+ *   java -cp out DNSLoadTest --in-process --qps 20000 --duration-s 10 --upstream-latency-ms 20 --upstream-loss 1
+ */
+public class DNSLoadTest {
+    private static final int HOT_NAMES = 100;
+    private static final int SLOTS = 65536; // one per query ID
+
+    private String server = "127.0.0.1:2053";
+    private boolean tcp;
+    private int qps = 10000;
+    private int durationS = 10;
+    private int clients = 4;
+    private int names = 100000;
+    private int hotPercent = 80;
+    private int multiPercent = 0;
+    private int timeoutMs = 6000;   // a bit more than the forwarder's own timeout
+    private int upstreamPort = -1;
+    private double upstreamLatencyMs;
+    private double upstreamJitterMs;
+    private double upstreamLossPercent;
+    private boolean inProcess;
+    private final List<String> serverArgs = new ArrayList<>();
+
+    private final DNSHistogram latency = new DNSHistogram();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder servfail = new LongAdder();
+    private final LongAdder otherErrors = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAccumulator lastResponseNanos = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private long sent;
+    private long overwritten; // queries whose ID was reused before a response arrived
+    private volatile boolean stopping;
+
+    public static void main(String[] args) throws Exception {
+        DNSLoadTest test = new DNSLoadTest();
+        test.parse(args);
+        test.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--")) {
+                serverArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else if (arg.equalsIgnoreCase("--server")) {
+                server = args[++i];
+            } else if (arg.equalsIgnoreCase("--proto")) {
+                tcp = args[++i].equalsIgnoreCase("tcp");
+            } else if (arg.equalsIgnoreCase("--qps")) {
+                qps = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--duration-s")) {
+                durationS = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--clients")) {
+                clients = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--names")) {
+                names = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--hot-percent")) {
+                hotPercent = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--multi-percent")) {
+                multiPercent = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--timeout-ms")) {
+                timeoutMs = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--upstream-port")) {
+                upstreamPort = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--upstream-latency-ms")) {
+                upstreamLatencyMs = Double.parseDouble(args[++i]);
+            } else if (arg.equalsIgnoreCase("--upstream-jitter-ms")) {
+                upstreamJitterMs = Double.parseDouble(args[++i]);
+            } else if (arg.equalsIgnoreCase("--upstream-loss")) {
+                upstreamLossPercent = Double.parseDouble(args[++i]);
+            } else if (arg.equalsIgnoreCase("--in-process")) {
+                inProcess = true;
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        if (inProcess && upstreamPort < 0) upstreamPort = 0;
+        DNSStubResolver upstream = upstreamPort < 0 ? null
+                : new DNSStubResolver(upstreamPort, upstreamLatencyMs, upstreamJitterMs, upstreamLossPercent);
+        if (upstream != null) {
+            System.out.println("Fake upstream on " + upstream.getAddress() + " (latency " + upstreamLatencyMs + " ms, jitter "
+                    + upstreamJitterMs + " ms, loss " + upstreamLossPercent + "%)");
+        }
+        if (inProcess) startServer(upstream.getAddress());
+
+        String[] hostPort = server.split(":");
+        InetSocketAddress address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        Client[] connections = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            connections[i] = new Client(address);
+            Thread reader = new Thread(connections[i]::readLoop, "load-reader-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        System.out.println("Sending " + qps + " queries/s over " + (tcp ? "TCP" : "UDP") + " for " + durationS + " s");
+        long intervalNanos = 1_000_000_000L / qps;
+        long total = (long) qps * durationS;
+        ByteBuffer query = ByteBuffer.allocate(512);
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long due = start + i * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 50_000) LockSupport.parkNanos(wait - 20_000);
+            while (System.nanoTime() < due) Thread.onSpinWait();
+
+            Client client = connections[(int) (i % clients)];
+            int id = (int) (i / clients) & 0xFFFF;
+            writeQuery(query, id);
+            if (client.slots.getAndSet(id, due) != 0) overwritten++;
+            client.send(query);
+            sent++;
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        // Give the last queries time to come back
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (received.sum() + overwritten < sent && System.nanoTime() < deadline) Thread.sleep(10);
+        long elapsedNanos = Math.max(sendNanos, lastResponseNanos.get() - start);
+        stopping = true;
+        for (Client client : connections) client.close();
+        if (upstream != null) upstream.close();
+
+        report(sendNanos, elapsedNanos);
+        if (inProcess) System.exit(0); // Main's server threads are not daemons
+    }
+
+    private void startServer(String resolver) throws InterruptedException {
+        List<String> args = new ArrayList<>(List.of("--resolver", resolver));
+        args.addAll(serverArgs);
+        Thread thread = new Thread(() -> Main.main(args.toArray(new String[0])), "dns-server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(500); // until the sockets are bound
+    }
+
+    /*
+     * One query from the mix into the buffer, ready to send. Multi-question packets repeat the
+     * zone suffix of the first name as a compression pointer.
+     */
+    private void writeQuery(ByteBuffer query, int id) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        query.clear();
+        DNSHeader.writeEmpty(query, (short) id);
+        DNSHeader.setQR(query, false);
+        DNSHeader.setRD(query, true);
+        boolean multi = random.nextInt(100) < multiPercent;
+        DNSHeader.setQuestionCount(query, multi ? 2 : 1);
+
+        writeLabel(query, nextName(random));
+        int suffix = query.position();
+        writeLabel(query, "load");
+        writeLabel(query, "test");
+        query.put((byte) 0).putShort(DNSRecord.TYPE_A).putShort((short) 1);
+        if (multi) {
+            writeLabel(query, nextName(random));
+            query.putShort((short) (0xC000 | suffix)).putShort(DNSRecord.TYPE_A).putShort((short) 1);
+        }
+        query.flip();
+    }
+
+    private String nextName(ThreadLocalRandom random) {
+        if (random.nextInt(100) < hotPercent) return "hot" + random.nextInt(HOT_NAMES);
+        return "n" + random.nextInt(names);
+    }
+
+    private static void writeLabel(ByteBuffer buffer, String label) {
+        buffer.put((byte) label.length());
+        for (int i = 0; i < label.length(); i++) buffer.put((byte) label.charAt(i));
+    }
+
+    private void onResponse(Client client, ByteBuffer response) {
+        long now = System.nanoTime();
+        if (response.limit() < DNSHeader.SIZE) return;
+        int id = DNSHeader.getId(response) & 0xFFFF;
+        long due = client.slots.getAndSet(id, 0);
+        if (due == 0) return; // late duplicate, or its slot was already reused
+        latency.record(now - due);
+        lastResponseNanos.accumulate(now);
+        received.increment();
+        int rcode = DNSHeader.getRC(response);
+        if (rcode == 2) servfail.increment();
+        else if (rcode != 0 && rcode != 3) otherErrors.increment();
+        if (DNSHeader.isTC(response)) truncated.increment();
+    }
+
+    private void report(long sendNanos, long elapsedNanos) {
+        long answered = received.sum();
+        long[] snapshot = latency.snapshot();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "sent        %d in %.2f s (%.0f queries/s offered)%n", sent, sendNanos / 1e9, sent * 1e9 / sendNanos);
+        System.out.printf(Locale.ROOT, "answered    %d (%.0f responses/s)%n", answered, answered * 1e9 / elapsedNanos);
+        System.out.printf(Locale.ROOT, "dropped     %d (%.3f%%)%n", sent - answered, (sent - answered) * 100.0 / Math.max(1, sent));
+        System.out.printf(Locale.ROOT, "servfail    %d, other errors %d, truncated %d%n", servfail.sum(), otherErrors.sum(), truncated.sum());
+        System.out.printf(Locale.ROOT, "latency     p50 %s  p99 %s  p999 %s  max %s%n",
+                millis(DNSHistogram.percentile(snapshot, 0.5)), millis(DNSHistogram.percentile(snapshot, 0.99)),
+                millis(DNSHistogram.percentile(snapshot, 0.999)), millis(DNSHistogram.percentile(snapshot, 1.0)));
+    }
+
+    // Percentiles are bucket upper bounds, so they are reported as "at most"
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "<=%.3fms", micros / 1000.0);
+    }
+
+    // A UDP socket or TCP connection to the server, with its own ID space
+    private final class Client {
+        private final ByteChannel channel;
+        private final AtomicLongArray slots = new AtomicLongArray(SLOTS); // due time of the query in flight per ID, 0 if none
+        private final ByteBuffer frame = ByteBuffer.allocate(2 + 512);
+
+        Client(InetSocketAddress address) throws IOException {
+            if (tcp) {
+                SocketChannel socket = SocketChannel.open(address);
+                socket.socket().setTcpNoDelay(true);
+                channel = socket;
+            } else {
+                channel = DatagramChannel.open().connect(address);
+            }
+        }
+
+        void send(ByteBuffer query) throws IOException {
+            if (!tcp) {
+                channel.write(query);
+                return;
+            }
+            frame.clear();
+            frame.putShort((short) query.remaining()).put(query).flip();
+            while (frame.hasRemaining()) channel.write(frame);
+        }
+
+        void readLoop() {
+            ByteBuffer buffer = ByteBuffer.allocate(DNSWorkerPool.MAX_MESSAGE_SIZE + 2);
+            try {
+                while (!stopping) {
+                    if (tcp) {
+                        readFully(buffer, 2);
+                        int length = buffer.getShort(0) & 0xFFFF;
+                        readFully(buffer, length);
+                    } else {
+                        buffer.clear();
+                        channel.read(buffer);
+                        buffer.flip();
+                    }
+                    onResponse(this, buffer);
+                }
+            } catch (IOException e) {
+                if (!stopping) System.out.println("Load client stopped: " + e.getMessage());
+            }
+        }
+
+        // Reads exactly length bytes into the start of the buffer (flipped for reading)
+        private void readFully(ByteBuffer buffer, int length) throws IOException {
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new IOException("connection closed by server");
+            }
+            buffer.flip();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * End-to-end check of iterative resolution (--recursive) against a small fake DNS tree on the
+ * loopback network, no internet needed.
+ *
+ * Every nameserver of the tree is an Authority: the server's own zone code (DNSZoneFile, DNSZones
+ * and an authoritative-only DNSQueryHandler) on its own 127.0.0.x address, all on --ns-port:
+ *
+ *   127.0.0.2   .               root, delegates test., other. and dead.
+ *   127.0.0.3   test.           delegates example.test (one live and one dead server),
+ *                               glueless.test and bad.test to nameservers in other.; also carries
+ *                               a bogus copy of other. so its referral for bad.test has glue
+ *                               pointing to 127.0.0.10 (out of bailiwick for test.)
+ *   127.0.0.4   example.test.   www, an in-zone CNAME and a CNAME into other.
+ *   127.0.0.5   other.          the nameserver addresses of glueless.test and bad.test, host.other
+ *   127.0.0.6   glueless.test.
+ *   127.0.0.7   bad.test.       the real one
+ *   127.0.0.10  bad.test.       the impostor behind the out-of-bailiwick glue, answers 6.6.6.6
+ *   127.0.0.8   (nothing)       second nameserver of example.test, never answers: a query sent
+ *                               there times out and is retried on 127.0.0.4
+ *   127.0.0.9   (nothing)       only nameserver of dead.
+ *
+ * Main runs in this JVM on port 2053 with --recursive --root-hints 127.0.0.2 --ns-port <port>, and
+ * every case sends one query to it over UDP and checks the response:
+ *   referrals          www.example.test      root -> test. -> example.test., 10.1.1.1
+ *   CNAME in zone      alias.example.test    CNAME www.example.test, 10.1.1.1
+ *   CNAME across zones ext.example.test      CNAME host.other, restarted at the root, 10.2.2.2
+ *   glueless           www.glueless.test     nsg.other resolved first, 10.3.3.3
+ *   NXDOMAIN           nope.example.test     NXDOMAIN
+ *   bailiwick          www.bad.test          10.4.4.4; the impostor never gets a query
+ *   dead servers       www.dead              SERVFAIL once every try of ns.dead has timed out, not a hang
+ * The tree is fresh for every run, so each case starts with a cold cache.
+ *
+ * Exits with status 1 if any case fails.
+ *
+ * Example:
+ *   java -cp out DNSRecursionTest --ns-port 5300
+ */
+public class DNSRecursionTest {
+    private static final int SERVER_PORT = 2053;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private int nsPort = 5300;
+    private int timeoutMs = DNSRecursor.DEFAULT_TIMEOUT_MS + 3000; // a bit more than the recursor's own timeout
+    private final List<Authority> authorities = new ArrayList<>();
+    private int failures;
+
+    public static void main(String[] args) throws Exception {
+        DNSRecursionTest test = new DNSRecursionTest();
+        test.parse(args);
+        test.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equalsIgnoreCase("--ns-port")) {
+                nsPort = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("--timeout-ms")) {
+                timeoutMs = Integer.parseInt(args[++i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        authority("127.0.0.2",
+                "$ORIGIN .",
+                "@ 3600 SOA a.root. hostmaster.root. 1 7200 900 604800 300",
+                "test. 3600 NS ns1.test.",
+                "ns1.test. 3600 A 127.0.0.3",
+                "other. 3600 NS ns.other.",
+                "ns.other. 3600 A 127.0.0.5",
+                "dead. 3600 NS ns.dead.",
+                "ns.dead. 3600 A 127.0.0.9");
+        authority("127.0.0.3",
+                "$ORIGIN test.",
+                "@ 3600 SOA ns1 hostmaster 1 7200 900 604800 300",
+                "@ 3600 NS ns1",
+                "ns1 3600 A 127.0.0.3",
+                "example 3600 NS ns.example",
+                "example 3600 NS ns2.example",
+                "ns.example 3600 A 127.0.0.4",
+                "ns2.example 3600 A 127.0.0.8",
+                "glueless 3600 NS nsg.other.",
+                "bad 3600 NS nsb.other.",
+                "$ORIGIN other.",
+                "@ 3600 SOA ns1.test. hostmaster.test. 1 7200 900 604800 300",
+                "nsb 3600 A 127.0.0.10");
+        authority("127.0.0.4",
+                "$ORIGIN example.test.",
+                "@ 3600 SOA ns hostmaster 1 7200 900 604800 300",
+                "@ 3600 NS ns",
+                "ns 3600 A 127.0.0.4",
+                "www 300 A 10.1.1.1",
+                "alias 300 CNAME www",
+                "ext 300 CNAME host.other.");
+        authority("127.0.0.5",
+                "$ORIGIN other.",
+                "@ 3600 SOA ns hostmaster 1 7200 900 604800 300",
+                "@ 3600 NS ns",
+                "ns 3600 A 127.0.0.5",
+                "nsg 3600 A 127.0.0.6",
+                "nsb 3600 A 127.0.0.7",
+                "host 300 A 10.2.2.2");
+        authority("127.0.0.6",
+                "$ORIGIN glueless.test.",
+                "@ 3600 SOA nsg.other. hostmaster 1 7200 900 604800 300",
+                "@ 3600 NS nsg.other.",
+                "www 300 A 10.3.3.3");
+        authority("127.0.0.7",
+                "$ORIGIN bad.test.",
+                "@ 3600 SOA nsb.other. hostmaster 1 7200 900 604800 300",
+                "@ 3600 NS nsb.other.",
+                "www 300 A 10.4.4.4");
+        Authority impostor = authority("127.0.0.10",
+                "$ORIGIN bad.test.",
+                "@ 3600 SOA nsb.other. hostmaster 1 7200 900 604800 300",
+                "@ 3600 NS nsb.other.",
+                "www 300 A 6.6.6.6");
+        System.out.println("Started " + authorities.size() + " authoritative servers on port " + nsPort);
+        startServer();
+
+        try (DatagramChannel client = DatagramChannel.open()) {
+            client.connect(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+            client.socket().setSoTimeout(timeoutMs);
+            check(client, "referrals", "www.example.test", RCODE_NOERROR, "A 10.1.1.1");
+            check(client, "CNAME in zone", "alias.example.test", RCODE_NOERROR, "CNAME www.example.test.", "A 10.1.1.1");
+            check(client, "CNAME across zones", "ext.example.test", RCODE_NOERROR, "CNAME host.other.", "A 10.2.2.2");
+            check(client, "glueless", "www.glueless.test", RCODE_NOERROR, "A 10.3.3.3");
+            check(client, "NXDOMAIN", "nope.example.test", RCODE_NXDOMAIN);
+            check(client, "bailiwick", "www.bad.test", RCODE_NOERROR, "A 10.4.4.4");
+            expect("bailiwick", impostor.queries.get() == 0, "the impostor behind the out-of-bailiwick glue got "
+                    + impostor.queries.get() + " queries");
+            check(client, "dead servers", "www.dead", RCODE_SERVFAIL);
+        }
+
+        for (Authority authority : authorities) authority.close();
+        System.out.println(failures == 0 ? "All cases passed" : failures + " case(s) failed");
+        System.exit(failures == 0 ? 0 : 1); // Main's server threads are not daemons
+    }
+
+    private Authority authority(String address, String... zone) throws IOException {
+        Authority authority = new Authority(new InetSocketAddress(address, nsPort), zone);
+        authorities.add(authority);
+        return authority;
+    }
+
+    private void startServer() throws InterruptedException {
+        String[] args = {"--recursive", "--root-hints", "127.0.0.2", "--ns-port", String.valueOf(nsPort)};
+        Thread thread = new Thread(() -> Main.main(args), "dns-server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(500); // until the sockets are bound
+    }
+
+    // Asks the server for name's A records and compares the rcode and the answer section, in order
+    private void check(DatagramChannel client, String label, String name, int rcode, String... answers) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer response;
+        try {
+            response = query(client, name);
+        } catch (SocketTimeoutException e) {
+            expect(label, false, name + ": no response within " + timeoutMs + " ms");
+            return;
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        int actualRcode = DNSHeader.getRC(response);
+        int answerCount = DNSHeader.getAnswerCount(response);
+        response.position(DNSHeader.SIZE);
+        for (int i = 0; i < DNSHeader.getQuestionCount(response); i++) DNSQuestion.readFrom(response);
+        List<String> actual = new ArrayList<>();
+        for (int i = 0; i < answerCount; i++) actual.add(describe(DNSRecord.readFrom(response)));
+
+        boolean passed = actualRcode == rcode && actual.equals(List.of(answers));
+        expect(label, passed, name + ": rcode " + actualRcode + " " + actual + " in " + millis + " ms"
+                + (passed ? "" : ", expected rcode " + rcode + " " + List.of(answers)));
+    }
+
+    private void expect(String label, boolean passed, String detail) {
+        if (!passed) failures++;
+        System.out.printf("%-4s %-20s %s%n", passed ? "ok" : "FAIL", label, detail);
+    }
+
+    private static ByteBuffer query(DatagramChannel client, String name) throws IOException {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        DNSHeader.writeEmpty(query, (short) name.hashCode());
+        DNSHeader.setQR(query, false);
+        DNSHeader.setRD(query, true);
+        DNSHeader.setQuestionCount(query, 1);
+        for (String label : name.split("\\.")) {
+            query.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) query.put((byte) label.charAt(i));
+        }
+        query.put((byte) 0).putShort(DNSRecord.TYPE_A).putShort((short) 1);
+        client.write(query.flip());
+
+        // The blocking read of the socket adaptor honours SO_TIMEOUT, the channel's own does not
+        DatagramPacket packet = new DatagramPacket(new byte[DNSWorkerPool.MAX_MESSAGE_SIZE], DNSWorkerPool.MAX_MESSAGE_SIZE);
+        client.socket().receive(packet);
+        return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+    }
+
+    // "A 10.1.1.1", "CNAME www.example.test." and so on
+    private static String describe(DNSRecord record) throws IOException {
+        if (record.getType() == DNSRecord.TYPE_A) {
+            return "A " + InetAddress.getByAddress(record.getRdata()).getHostAddress();
+        }
+        if (record.getType() == DNSRecord.TYPE_CNAME) {
+            return "CNAME " + DNSName.toString(record.getRdata());
+        }
+        return "TYPE" + record.getType();
+    }
+
+    /*
+     * A fake authoritative nameserver: the zone lines are loaded like a --zone file and answered by
+     * a DNSQueryHandler without cache or upstream, on one daemon thread.
+     */
+    private static final class Authority implements AutoCloseable {
+        private final DatagramChannel channel;
+        private final DNSQueryHandler handler;
+        private final AtomicInteger queries = new AtomicInteger();
+
+        Authority(InetSocketAddress address, String... zone) throws IOException {
+            Path file = Files.createTempFile("dns-recursion-test", ".zone");
+            DNSZones zones = new DNSZones();
+            try {
+                Files.write(file, List.of(zone));
+                DNSZoneFile.load(file, null, zones);
+            } finally {
+                Files.delete(file);
+            }
+            zones.seal();
+            this.handler = new DNSQueryHandler(null, null, zones, EDNS.DEFAULT_UDP_SIZE);
+            this.channel = DatagramChannel.open().bind(address);
+
+            Thread thread = new Thread(this::serve, "dns-authority-" + address.getHostString());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void serve() {
+            ByteBuffer query = ByteBuffer.allocate(DNSWorkerPool.MAX_MESSAGE_SIZE);
+            ByteBuffer response = ByteBuffer.allocate(DNSWorkerPool.MAX_MESSAGE_SIZE);
+            try {
+                while (true) {
+                    query.clear();
+                    SocketAddress client = channel.receive(query);
+                    query.flip();
+                    queries.incrementAndGet();
+                    int length = handler.resolveQuery(query, response, 512);
+                    if (length > 0) channel.send(response.limit(length).position(0), client);
+                }
+            } catch (ClosedChannelException e) {
+                // closed by close()
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Authority stopped: " + e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * In-process upstream resolver for benchmarks and load tests: answers every question with one A
+ * record (10.0.0.1, TTL 300) on a loopback UDP port.
+ *
+ * The reply echoes the query's header and question and appends the answer with a compression
+ * pointer to the question name. Runs on one daemon thread with a single reused buffer, so it
+ * adds as little of its own cost to the measurements as possible.
+ *
+ * To look like a real upstream it can drop a share of the queries and delay replies by a fixed
+ * latency plus uniform jitter; delayed replies are copied and sent from a timer thread.
+ */
+public class DNSStubResolver implements AutoCloseable {
+    private static final byte[] ANSWER = {
+            (byte) 0xC0, 0x0C,          // pointer to the question name
+            0x00, 0x01, 0x00, 0x01,     // TYPE A, CLASS IN
+            0x00, 0x00, 0x01, 0x2C,     // TTL 300
+            0x00, 0x04, 10, 0, 0, 1};   // RDLENGTH, RDATA
+
+    private final DatagramChannel channel;
+    private final int latencyMicros;
+    private final int jitterMicros;
+    private final double lossRate;
+    private final ScheduledExecutorService delayed;
+
+    public DNSStubResolver() throws IOException {
+        this(0, 0, 0, 0);
+    }
+
+    // port 0 picks a free port; latency and jitter in milliseconds, loss in percent
+    public DNSStubResolver(int port, double latencyMs, double jitterMs, double lossPercent) throws IOException {
+        latencyMicros = (int) (latencyMs * 1000);
+        jitterMicros = (int) (jitterMs * 1000);
+        lossRate = lossPercent / 100;
+        delayed = latencyMicros > 0 || jitterMicros > 0 ? new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "dns-stub-delay");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", port));
+        Thread thread = new Thread(this::serve, "dns-stub-resolver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // host:port, as taken by --resolver
+    public String getAddress() throws IOException {
+        InetSocketAddress address = (InetSocketAddress) channel.getLocalAddress();
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) continue;
+                if (buffer.position() < DNSHeader.SIZE || DNSHeader.getQuestionCount(buffer) != 1) continue;
+
+                // Keep header + question, drop the query's OPT record
+                int questionEnd = DNSName.skip(buffer, DNSHeader.SIZE) + 4;
+                buffer.position(questionEnd);
+                DNSHeader.setQR(buffer, true);
+                DNSHeader.setAnswerCount(buffer, 1);
+                DNSHeader.setAuthorityCount(buffer, 0);
+                DNSHeader.setAdditionalCount(buffer, 0);
+                buffer.put(ANSWER);
+                buffer.flip();
+                if (delayed == null) {
+                    channel.send(buffer, client);
+                } else {
+                    ByteBuffer reply = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                    int delay = latencyMicros + (jitterMicros > 0 ? ThreadLocalRandom.current().nextInt(jitterMicros + 1) : 0);
+                    delayed.schedule(() -> send(reply, client), delay, TimeUnit.MICROSECONDS);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // closed by the benchmark
+        } catch (IOException e) {
+            System.out.println("Stub resolver stopped: " + e.getMessage());
+        }
+    }
+
+    private void send(ByteBuffer reply, SocketAddress client) {
+        try {
+            channel.send(reply, client);
+        } catch (IOException e) {
+            // closed while replies were still pending
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delayed != null) delayed.shutdownNow();
+        channel.close();
+    }
+}
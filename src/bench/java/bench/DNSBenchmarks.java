@@ -0,0 +1,111 @@
+package bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * JMH benchmarks for the codec, handler and forwarding paths, one per case of DNSBenchmarkCases
+ * (headerParse is "header.parse" and so on).
+ *
+ * JMH refuses benchmarks in the default package, and classes in a named package cannot refer to
+ * the server's, which are all in the default package. So the cases are written next to the server
+ * in DNSBenchmarkCases and looked up once per trial as IntSuppliers. Every benchmark calls its own
+ * supplier from its own call site, which the JIT inlines like a direct call, and hands the result
+ * to the Blackhole.
+ *
+ * Run, with allocation per operation (gc.alloc.rate.norm, B/op) from the gc profiler:
+ *   gradle jmh -PjmhArgs='-prof gc'
+ *   gradle jmh -PjmhArgs='-prof gc resolve'                            only the resolve benchmarks
+ *   gradle jmh -PjmhArgs='-prof gc -rf csv -rff build/current.csv'     results for DNSBenchCompare
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DNSBenchmarks {
+    private AutoCloseable cases;
+    private IntSupplier headerParse;
+    private IntSupplier questionParse;
+    private IntSupplier questionParseCompressed;
+    private IntSupplier responseEncode;
+    private IntSupplier resolveDefault;
+    private IntSupplier resolveZone;
+    private IntSupplier resolveCached;
+    private IntSupplier resolveForwarded;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> type = Class.forName("DNSBenchmarkCases");
+        cases = (AutoCloseable) type.getConstructor().newInstance();
+        Method get = type.getMethod("get", String.class);
+        headerParse = (IntSupplier) get.invoke(cases, "header.parse");
+        questionParse = (IntSupplier) get.invoke(cases, "question.parse");
+        questionParseCompressed = (IntSupplier) get.invoke(cases, "question.parse.compressed");
+        responseEncode = (IntSupplier) get.invoke(cases, "response.encode");
+        resolveDefault = (IntSupplier) get.invoke(cases, "resolve.default");
+        resolveZone = (IntSupplier) get.invoke(cases, "resolve.zone");
+        resolveCached = (IntSupplier) get.invoke(cases, "resolve.cached");
+        resolveForwarded = (IntSupplier) get.invoke(cases, "resolve.forwarded");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        cases.close();
+    }
+
+    @Benchmark
+    public void headerParse(Blackhole blackhole) {
+        blackhole.consume(headerParse.getAsInt());
+    }
+
+    @Benchmark
+    public void questionParse(Blackhole blackhole) {
+        blackhole.consume(questionParse.getAsInt());
+    }
+
+    @Benchmark
+    public void questionParseCompressed(Blackhole blackhole) {
+        blackhole.consume(questionParseCompressed.getAsInt());
+    }
+
+    @Benchmark
+    public void responseEncode(Blackhole blackhole) {
+        blackhole.consume(responseEncode.getAsInt());
+    }
+
+    @Benchmark
+    public void resolveDefault(Blackhole blackhole) {
+        blackhole.consume(resolveDefault.getAsInt());
+    }
+
+    @Benchmark
+    public void resolveZone(Blackhole blackhole) {
+        blackhole.consume(resolveZone.getAsInt());
+    }
+
+    @Benchmark
+    public void resolveCached(Blackhole blackhole) {
+        blackhole.consume(resolveCached.getAsInt());
+    }
+
+    @Benchmark
+    public void resolveForwarded(Blackhole blackhole) {
+        blackhole.consume(resolveForwarded.getAsInt());
+    }
+}
@@ -1,14 +1,107 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 
+/*
+ * Settings from the command line and, with --config <file>, from a config file that can be reloaded
+ * while the server runs (see DNSReloader).
+ *
+ * The file has one "option = value" per line, options named like the command line's without the
+ * dashes ("resolver = 1.1.1.1", "cache-mb = 128"); "zone" may be repeated, "recursive" takes yes/no,
+ * lines starting with # are comments. Command line arguments win over the file.
+ *
+ * The settings are an immutable map replaced as a whole, so readers on other threads never see a
+ * half-loaded file. A reload reads the file into a candidate map first (read()) and publishes it with
+ * apply() only once everything built from it has loaded.
+ */
 public class Config {
-    private static final Map<String, String> config = new HashMap<>();
+    private static final Map<String, String> arguments = new HashMap<>(); // command line, set once from Main
+    private static volatile Map<String, String> config = Map.of();
 
     public static void setConfig(String key, String value){
-        config.put(key, value);
+        arguments.put(key, value);
+        Map<String, String> merged = new HashMap<>(config);
+        merged.put(key, value);
+        config = Map.copyOf(merged);
     }
 
     public static String getConfig(String key){
         return config.getOrDefault(key, null);
     }
+
+    public static int getInt(String key, int defaultValue) {
+        return getInt(config, key, defaultValue);
+    }
+
+    public static int getInt(Map<String, String> settings, String key, int defaultValue) {
+        String value = settings.get(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    // The current settings as a whole
+    public static Map<String, String> getAll() {
+        return config;
+    }
+
+    // The --config file, null when there is none
+    public static Path getFile() {
+        String file = arguments.get("config");
+        return file == null ? null : Path.of(file);
+    }
+
+    // Re-reads the config file (if any) and replaces the settings. On error the current settings are kept.
+    public static synchronized void load() throws IOException {
+        config = read();
+    }
+
+    /*
+     * Reads the config file (if any) and returns its contents overlaid by the command line
+     * arguments, without replacing the current settings.
+     */
+    public static Map<String, String> read() throws IOException {
+        Map<String, String> merged = new HashMap<>();
+        Path file = getFile();
+        if (file != null) {
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(file)) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int separator = line.indexOf('=');
+                if (separator < 0) throw new IOException(file + ":" + lineNumber + ": expected <option> = <value>");
+                String key = toKey(line.substring(0, separator).trim());
+                String value = line.substring(separator + 1).trim();
+                if (key.equals("zone")) {
+                    merged.merge("zones", value, (zones, zone) -> zones + "," + zone);
+                } else if (key.equals("recursive")) {
+                    if (value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("true")) merged.put(key, "true");
+                } else {
+                    merged.put(key, value);
+                }
+            }
+        }
+        merged.putAll(arguments);
+        return Map.copyOf(merged);
+    }
+
+    // Makes settings returned by read() the current ones
+    public static synchronized void apply(Map<String, String> settings) {
+        config = settings;
+    }
+
+    // "cache-mb" -> "cacheMb", the key Main uses for --cache-mb
+    private static String toKey(String option) {
+        StringBuilder key = new StringBuilder(option.length());
+        for (int i = 0; i < option.length(); i++) {
+            char c = option.charAt(i);
+            if (c == '-' && i + 1 < option.length()) {
+                key.append(Character.toUpperCase(option.charAt(++i)));
+            } else {
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
 }
@@ -1,17 +1,28 @@
 import java.nio.ByteBuffer;
 
+/*
+ * Synthetic A record used when no resolver is configured.
+ *
+ * Everything except the owner name is fixed, so it is encoded once when the answer is created
+ * (including parsing the dotted IP) and every response just copies those 14 bytes. The owner name
+ * is the question's name, which is already in the response buffer, so it compresses to a pointer.
+ */
 public class DNSAnswer {
 
-    private byte[] domainName;
     private short type = 1;    // A record (2 bytes)
     private short class_ = 1;  // IN class (2 bytes)
     private int ttl = 60;      // TTL in seconds (4 bytes integer)
     private short rdLength = 4; // Length of IP address (2 bytes)
-    private byte[] rdata;      // IP address bytes (4 bytes integer)
+    private final byte[] encoded; // TYPE + CLASS + TTL + RDLENGTH + RDATA, ready to put()
 
-    public DNSAnswer(byte[] domainName, String ipAddress){
-        this.domainName = domainName;
-        this.rdata = convertIPToBytes(ipAddress);
+    public DNSAnswer(String ipAddress){
+        ByteBuffer buffer = ByteBuffer.allocate(10 + rdLength);
+        buffer.putShort(type);
+        buffer.putShort(class_);
+        buffer.putInt(ttl);
+        buffer.putShort(rdLength);
+        buffer.put(convertIPToBytes(ipAddress));
+        this.encoded = buffer.array();
     }
 
     private byte[] convertIPToBytes(String ipAddString){
@@ -26,13 +37,15 @@ public class DNSAnswer {
         return ip;
     }
 
-    public void writeToBuffer(ByteBuffer buffer) {
-        buffer.put(domainName);
-        buffer.putShort(type);
-        buffer.putShort(class_);
-        buffer.putInt(ttl);
-        buffer.putShort(rdLength);
-        buffer.put(rdata);
+    /*
+     * Writes the record at the buffer's position. The owner name is the name found at nameOffset of
+     * the same buffer (the question), written through the compressor. Throws
+     * DNSResponseFullException, having written nothing, if the record may not fit.
+     */
+    public void writeToBuffer(ByteBuffer buffer, int nameOffset, NameCompressor compressor) {
+        DNSResponseFullException.ensureRemaining(buffer, DNSName.length(buffer, nameOffset) + encoded.length);
+        compressor.copyName(buffer, nameOffset, buffer);
+        buffer.put(encoded);
     }
 
 }
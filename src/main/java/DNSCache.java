@@ -0,0 +1,473 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/*
+ * Bounded, concurrent cache of upstream answers keyed by (qname, qtype, qclass).
+ *
+ * Layout:
+ *   - The key space is split into SEGMENTS independent segments (like the old ConcurrentHashMap
+ *     design), each one a LinkedHashMap in access order guarded by its own lock. Threads
+ *     resolving different names almost never contend.
+ *   - Each segment owns 1/SEGMENTS of the memory cap. Sizes are estimated from the wire size
+ *     of the cached records plus a fixed per-entry overhead.
+ *   - Eviction is LRU within a segment, with a TinyLFU admission filter in front of it: when the
+ *     segment is full, a new entry is only admitted if it has been asked for more often than the
+ *     LRU victim it would replace. One-hit wonders therefore can't flush the hot names out.
+ *
+ * TTLs:
+ *   - An entry lives for the smallest TTL of its records. Served records have their TTL counted
+ *     down by the time spent in the cache, so clients never cache past the upstream's TTL.
+ *   - Negative answers (NXDOMAIN, or NOERROR without answers) are cached per RFC 2308 using the
+ *     SOA from the authority section; without a SOA they are not cached at all.
+ *
+ * Loads:
+ *   - Misses are filled through load(), which coalesces concurrent misses for the same key
+ *     (singleflight): the first caller sends the upstream query, everyone asking for the same
+ *     question before the reply arrives waits on that same future. The reply is parsed and
+ *     cached once, before the load is unregistered, so later callers find it in the cache.
+ *     A popular name expiring therefore costs one upstream query, not one per client.
+ *   - Prefetch: a hit on a popular entry (asked for PREFETCH_MIN_HITS times or more) in the last
+ *     10% of its TTL starts a background load, so the entry is replaced before it expires and
+ *     its clients never wait for the upstream.
+ *
+ * Serve-stale (RFC 8767):
+ *   - Expired entries are kept for another staleSeconds (and are the first to go when space is
+ *     needed, ahead of live entries more recently used). lookup() returns them; the caller still asks the upstream, but if that fails or
+ *     takes longer than STALE_ANSWER_MS it answers from the stale entry with STALE_TTL, and
+ *     for STALE_RETRY_SECONDS afterwards the entry is served stale right away (RFC 8767 section 5).
+ */
+public class DNSCache {
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    private static final int SEGMENTS = 16;
+    private static final int ENTRY_OVERHEAD_BYTES = 128; // key, entry object, map node, list
+    static final int DEFAULT_STALE_SECONDS = 86400;     // RFC 8767 suggests 1 to 3 days
+    static final int STALE_TTL = 30;                     // TTL of records served stale (RFC 8767 section 4)
+    static final int STALE_ANSWER_MS = 1800;             // "client response timer" (RFC 8767 section 5)
+    private static final int STALE_RETRY_SECONDS = 30;   // "failure recheck timer"
+    private static final int PREFETCH_MIN_HITS = 3;
+    private static final int EXPIRED_SCAN = 64;          // LRU entries searched for expired ones before evicting live ones
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int staleSeconds;
+    private final ConcurrentHashMap<DNSQuestion, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+
+    public DNSCache(long maxBytes) {
+        this(maxBytes, DEFAULT_STALE_SECONDS);
+    }
+
+    // staleSeconds: how long expired entries may still be served stale, 0 to disable serve-stale
+    public DNSCache(long maxBytes, int staleSeconds) {
+        this.staleSeconds = staleSeconds;
+        long segmentBytes = Math.max(1, maxBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentBytes, staleSeconds);
+        }
+    }
+
+    // Changes the memory cap (a reload of --cache-mb); a smaller cap evicts least recently used entries right away
+    public void setMaxBytes(long maxBytes) {
+        long segmentBytes = Math.max(1, maxBytes / SEGMENTS);
+        for (Segment segment : segments) segment.setMaxBytes(segmentBytes);
+    }
+
+    // Returns a live entry or null on a miss.
+    public Entry get(DNSQuestion question) {
+        long now = System.nanoTime();
+        Entry entry = lookup(question, now);
+        return entry == null || entry.isExpired(now) ? null : entry;
+    }
+
+    /*
+     * Returns a live or stale entry (check isExpired()), or null on a miss. Entries past the stale
+     * window are dropped on the way.
+     */
+    public Entry lookup(DNSQuestion question, long nowNanos) {
+        return segmentFor(question).get(question, nowNanos);
+    }
+
+    /*
+     * True once per entry if a hit on it should refresh it in the background: the entry is in the
+     * last 10% of its TTL and the name is popular. The caller then starts load().
+     */
+    public boolean shouldPrefetch(DNSQuestion question, Entry entry, long nowNanos) {
+        int remaining = entry.ttl - entry.elapsedSeconds(nowNanos);
+        if (remaining * 10L > entry.ttl || entry.prefetching.get()) return false;
+        if (segmentFor(question).frequency(question) < PREFETCH_MIN_HITS) return false;
+        return entry.prefetching.compareAndSet(false, true);
+    }
+
+    /*
+     * Returns the pending load of this question, or starts one with upstream. The future completes
+     * with the parsed reply (cached if cacheable), or exceptionally if the upstream query failed or
+     * its reply was malformed. Completion happens on whichever thread completes the upstream future.
+     */
+    public CompletableFuture<Entry> load(DNSQuestion question, Function<DNSQuestion, CompletableFuture<byte[]>> upstream) {
+        CompletableFuture<Entry> pending = loading.get(question);
+        if (pending == null) {
+            CompletableFuture<Entry> created = new CompletableFuture<>();
+            pending = loading.putIfAbsent(question, created);
+            if (pending == null) {
+                CompletableFuture<byte[]> reply;
+                try {
+                    reply = upstream.apply(question);
+                } catch (RuntimeException e) {
+                    loading.remove(question, created);
+                    created.completeExceptionally(e);
+                    return created;
+                }
+                reply.whenComplete((response, error) -> {
+                    Entry entry = null;
+                    Throwable failure = error;
+                    if (failure == null) {
+                        try {
+                            entry = parseResponse(response);
+                            put(question, entry);
+                        } catch (RuntimeException e) {
+                            failure = e;
+                        }
+                    }
+                    loading.remove(question, created);
+                    if (failure == null) created.complete(entry);
+                    else created.completeExceptionally(failure);
+                });
+                return created;
+            }
+        }
+        DNSMetrics.upstreamCoalesced();
+        return pending;
+    }
+
+    public void put(DNSQuestion question, Entry entry) {
+        if (!entry.isCacheable()) return;
+        segmentFor(question).put(question, entry);
+    }
+
+    /*
+     * Inserts an entry without the admission filter, making room by plain LRU eviction. For
+     * DNSCacheSnapshot, whose entries were admitted before the restart: the frequency sketch starts
+     * out empty, so put() would decide between them on counts that are all zero.
+     */
+    void restore(DNSQuestion question, Entry entry) {
+        if (!entry.isCacheable()) return;
+        segmentFor(question).insert(question, entry);
+    }
+
+    /*
+     * Calls action for every entry, least recently used first within each segment. A segment's
+     * entries are copied under its lock and visited after it is released, so a slow action (writing
+     * a DNSCacheSnapshot) does not hold up lookups.
+     */
+    public void forEach(BiConsumer<DNSQuestion, Entry> action) {
+        for (Segment segment : segments) {
+            List<Map.Entry<DNSQuestion, Entry>> entries = segment.entries();
+            for (Map.Entry<DNSQuestion, Entry> entry : entries) action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    int getStaleSeconds() {
+        return staleSeconds;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) size += segment.count();
+        return size;
+    }
+
+    private Segment segmentFor(DNSQuestion question) {
+        int h = question.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /*
+     * Parses a raw upstream response into an entry. Every well-formed response yields an entry
+     * so the caller can replay it to the client; isCacheable() tells whether it may be stored
+     * (server failures, truncated answers, zero TTLs and negative answers without SOA may not).
+     * Malformed packets surface as the BufferUnderflowException / IllegalArgumentException
+     * thrown while reading them.
+     */
+    public static Entry parseResponse(byte[] response) {
+        ByteBuffer message = ByteBuffer.wrap(response);
+        int rcode = DNSHeader.getRC(message);
+        int qdCount = DNSHeader.getQuestionCount(message);
+        int anCount = DNSHeader.getAnswerCount(message);
+        int nsCount = DNSHeader.getAuthorityCount(message);
+        message.position(DNSHeader.SIZE);
+
+        for (int i = 0; i < qdCount; i++) {
+            DNSName.skip(message);
+            message.position(message.position() + 4);       // QTYPE + QCLASS
+        }
+
+        List<DNSRecord> answers = new ArrayList<>(anCount);
+        for (int i = 0; i < anCount; i++) answers.add(DNSRecord.readFrom(message));
+        List<DNSRecord> authority = new ArrayList<>(nsCount);
+        for (int i = 0; i < nsCount; i++) authority.add(DNSRecord.readFrom(message));
+
+        int ttl = 0;
+        if (rcode == RCODE_NOERROR && !answers.isEmpty()) {
+            ttl = Integer.MAX_VALUE;
+            for (DNSRecord answer : answers) ttl = Math.min(ttl, answer.getTtl());
+            authority = Collections.emptyList(); // referral / NS data is not needed to replay a positive answer
+        } else if (rcode == RCODE_NOERROR || rcode == RCODE_NXDOMAIN) {
+            for (DNSRecord record : authority) {
+                if (record.getType() == DNSRecord.TYPE_SOA) {
+                    ttl = record.negativeTtl();
+                    authority = Collections.singletonList(record);
+                    break;
+                }
+            }
+        }
+        if (DNSHeader.isTC(message)) ttl = 0;               // TC set, answer is incomplete
+
+        // TTL 0 means "use once", negative values are RFC 2181 TTLs with the top bit set, also 0
+        return new Entry(rcode, answers, authority, Math.max(0, ttl), System.nanoTime());
+    }
+
+    public static class Entry {
+        private final int rcode;
+        private final List<DNSRecord> answers;
+        private final List<DNSRecord> authority;
+        private final int ttl;           // seconds, smallest TTL in the entry
+        private final long storedAtNanos;
+        private final int sizeBytes;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+        private volatile long staleRetryNanos;  // serve stale without asking upstream until then
+
+        Entry(int rcode, List<DNSRecord> answers, List<DNSRecord> authority, int ttl, long storedAtNanos) {
+            this.rcode = rcode;
+            this.answers = answers;
+            this.authority = authority;
+            this.ttl = ttl;
+            this.storedAtNanos = storedAtNanos;
+
+            int size = ENTRY_OVERHEAD_BYTES;
+            for (DNSRecord record : answers) size += record.size() + 32;
+            for (DNSRecord record : authority) size += record.size() + 32;
+            this.sizeBytes = size;
+        }
+
+        public boolean isCacheable() {
+            return ttl > 0;
+        }
+
+        public int getRcode() {
+            return rcode;
+        }
+
+        int getTtl() {
+            return ttl;
+        }
+
+        long getStoredAtNanos() {
+            return storedAtNanos;
+        }
+
+        public List<DNSRecord> getAnswers() {
+            return answers;
+        }
+
+        public List<DNSRecord> getAuthority() {
+            return authority;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return elapsedSeconds(nowNanos) >= ttl;
+        }
+
+        int elapsedSeconds(long nowNanos) {
+            return (int) ((nowNanos - storedAtNanos) / 1_000_000_000L);
+        }
+
+        // TTL to put on the wire for a cached record: original TTL minus the time spent in the cache
+        public int remainingTtl(DNSRecord record) {
+            return Math.max(0, record.getTtl() - elapsedSeconds(System.nanoTime()));
+        }
+
+        // After a failed refresh, a stale entry is served without asking the upstream for a while
+        boolean isStaleRetryPending(long nowNanos) {
+            long retry = staleRetryNanos;
+            return retry != 0 && nowNanos - retry < 0;
+        }
+
+        void staleRefreshFailed(long nowNanos) {
+            staleRetryNanos = nowNanos + STALE_RETRY_SECONDS * 1_000_000_000L;
+        }
+    }
+
+    private static class Segment {
+        private long maxBytes;
+        private final LinkedHashMap<DNSQuestion, Entry> map = new LinkedHashMap<>(64, 0.75f, true);
+        private final FrequencySketch sketch = new FrequencySketch();
+        private final int staleSeconds;
+        private long usedBytes;
+
+        Segment(long maxBytes, int staleSeconds) {
+            this.maxBytes = maxBytes;
+            this.staleSeconds = staleSeconds;
+        }
+
+        synchronized Entry get(DNSQuestion question, long nowNanos) {
+            sketch.increment(question.hashCode());
+            Entry entry = map.get(question);
+            if (entry == null) return null;
+            if (entry.elapsedSeconds(nowNanos) >= (long) entry.ttl + staleSeconds) {
+                map.remove(question);
+                usedBytes -= entry.sizeBytes;
+                return null;
+            }
+            return entry;
+        }
+
+        synchronized void put(DNSQuestion question, Entry entry) {
+            if (entry.sizeBytes > maxBytes) return;
+            Entry previous = map.get(question); // also makes it the most recently used, out of the victims' way
+
+            // Admission first, without touching the map: find the victims that would make room
+            long needed = usedBytes - (previous == null ? 0 : previous.sizeBytes) + entry.sizeBytes - maxBytes;
+            long now = System.nanoTime();
+            int window = 0;  // expired entries among the first `window` LRU entries are evicted
+            int victims = 0; // and so are the first `victims` other LRU entries
+            if (needed > 0) {
+                // Expired entries go first, wherever they are among the EXPIRED_SCAN least recently used.
+                // The scan is bounded so that a full segment without expired entries doesn't cost a
+                // walk of the whole map per put; expired entries drift to the LRU end anyway.
+                long expired = 0;
+                for (Entry candidate : map.values()) {
+                    if (window == EXPIRED_SCAN || expired >= needed || candidate == previous) break; // previous is last in access order
+                    window++;
+                    if (candidate.isExpired(now)) expired += candidate.sizeBytes;
+                }
+                needed -= expired;
+
+                // Then the other entries in LRU order: live ones only if the newcomer is more popular
+                int frequency = sketch.frequency(question.hashCode());
+                int index = 0;
+                for (Map.Entry<DNSQuestion, Entry> victim : map.entrySet()) {
+                    if (needed <= 0 || victim.getValue() == previous) break;
+                    if (index++ < window && victim.getValue().isExpired(now)) continue; // counted above
+                    if (!victim.getValue().isExpired(now) && sketch.frequency(victim.getKey().hashCode()) > frequency) {
+                        return; // rejected: the segment, previous and expired entries included, stays as it was
+                    }
+                    needed -= victim.getValue().sizeBytes;
+                    victims++;
+                }
+            }
+
+            // Admitted: replace the previous entry and evict the victims found above, in the same order
+            if (previous != null) {
+                map.remove(question);
+                usedBytes -= previous.sizeBytes;
+            }
+            Iterator<Entry> lru = map.values().iterator();
+            for (int index = 0; index < window || victims > 0; index++) {
+                Entry victim = lru.next();
+                if (index >= window || !victim.isExpired(now)) {
+                    if (victims == 0) continue;
+                    victims--;
+                }
+                usedBytes -= victim.sizeBytes;
+                lru.remove();
+            }
+            map.put(question, entry);
+            usedBytes += entry.sizeBytes;
+        }
+
+        synchronized void insert(DNSQuestion question, Entry entry) {
+            if (entry.sizeBytes > maxBytes) return;
+            Entry previous = map.put(question, entry);
+            usedBytes += entry.sizeBytes - (previous == null ? 0 : previous.sizeBytes);
+            Iterator<Entry> lru = map.values().iterator();
+            while (usedBytes > maxBytes) { // never reaches the new entry, the last in access order
+                usedBytes -= lru.next().sizeBytes;
+                lru.remove();
+            }
+        }
+
+        synchronized void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            Iterator<Entry> lru = map.values().iterator();
+            while (usedBytes > maxBytes && lru.hasNext()) {
+                usedBytes -= lru.next().sizeBytes;
+                lru.remove();
+            }
+        }
+
+        synchronized int frequency(DNSQuestion question) {
+            return sketch.frequency(question.hashCode());
+        }
+
+        synchronized List<Map.Entry<DNSQuestion, Entry>> entries() {
+            return new ArrayList<>(map.entrySet()); // entrySet() of a LinkedHashMap iterates in access order
+        }
+
+        synchronized int count() {
+            return map.size();
+        }
+    }
+
+    /*
+     * Count-min sketch with 4-bit counters (the TinyLFU frequency estimator).
+     * 16 counters are packed in each long; every key touches 4 counters and its estimated
+     * frequency is the smallest of them. Once enough increments have been recorded all
+     * counters are halved so that old popularity fades away.
+     */
+    private static class FrequencySketch {
+        private static final int TABLE_SIZE = 1024; // longs, i.e. 16k counters per segment
+        private static final int RESET_AFTER = TABLE_SIZE * 16 * 10;
+        private static final int[] SEEDS = {0x97cb3127, 0xb1a3c5d3, 0x2c1b3c6d, 0x7f4a7c15};
+
+        private final long[] table = new long[TABLE_SIZE];
+        private int additions;
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int counter = counterIndex(hash, i);
+                int slot = counter >>> 4;
+                int shift = (counter & 15) << 2;
+                if (((table[slot] >>> shift) & 0xF) < 15) {
+                    table[slot] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= RESET_AFTER) reset();
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                int counter = counterIndex(hash, i);
+                int value = (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xF);
+                min = Math.min(min, value);
+            }
+            return min;
+        }
+
+        private int counterIndex(int hash, int i) {
+            int h = (hash ^ SEEDS[i]) * 0x9E3779B9;
+            h ^= h >>> 15;
+            return h & (TABLE_SIZE * 16 - 1);
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Saves the answer cache to a file periodically and on shutdown, and fills the cache from it
+ * at startup, so a restarted server answers popular names from the cache right away instead of
+ * sending every client's first query upstream.
+ *
+ * File layout (big endian), written and read through a memory mapping:
+ *
+ *   header   MAGIC (4) | VERSION (4) | entry count (4) | saved at, epoch ms (8)
+ *   entry    QNAME (uncompressed) | QTYPE (2) | QCLASS (2) | RCODE (1) | TTL (4) |
+ *            expires at, epoch ms (8) | answer count (2) | authority count (2) | records
+ *   record   as on the wire, uncompressed (DNSRecord.readFrom() reads it back)
+ *
+ * Expiry is stored as wall clock time because System.nanoTime() means nothing to another process.
+ * On load every entry gets the age it had at save time plus the time the server was down, so the
+ * TTLs it is served with keep counting down from where they were; entries already past the
+ * serve-stale window are skipped. Entries are written least recently used first and inserted in
+ * that order past the admission filter (DNSCache.restore()), so if the cache is smaller than the
+ * file the most recently used ones are kept.
+ *
+ * The file is written next to its final path and renamed over it, so a crash while saving leaves
+ * the previous snapshot intact. A damaged or foreign file is ignored from the first bad entry on.
+ */
+public class DNSCacheSnapshot {
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int ENTRY_FIXED_SIZE = 2 + 2 + 1 + 4 + 8 + 2 + 2;
+    static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+    private final DNSCache cache;
+    private final Path file;
+    private final Path tempFile;
+
+    public DNSCacheSnapshot(DNSCache cache, Path file) {
+        this.cache = cache;
+        this.file = file;
+        this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    // Saves every intervalSeconds on a background thread, and once more when the JVM shuts down
+    public void start(int intervalSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            executor.shutdownNow();
+            saveQuietly();
+        }, "dns-cache-snapshot-shutdown"));
+    }
+
+    // Writes the cache to the file; returns the number of entries written
+    public synchronized int save() throws IOException {
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        List<DNSQuestion> questions = new ArrayList<>();
+        List<DNSCache.Entry> entries = new ArrayList<>();
+        long[] size = {HEADER_SIZE};
+        cache.forEach((question, entry) -> {
+            long entrySize = entrySize(question, entry);
+            if (size[0] + entrySize > Integer.MAX_VALUE) return; // one mapping; far beyond any sensible --cache-mb
+            size[0] += entrySize;
+            questions.add(question);
+            entries.add(entry);
+        });
+
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size[0]);
+            out.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putLong(nowMillis);
+            for (int i = 0; i < entries.size(); i++) {
+                DNSQuestion question = questions.get(i);
+                DNSCache.Entry entry = entries.get(i);
+                long storedAtMillis = nowMillis - (nowNanos - entry.getStoredAtNanos()) / 1_000_000;
+                question.writeToBuffer(out);
+                out.put((byte) entry.getRcode());
+                out.putInt(entry.getTtl());
+                out.putLong(storedAtMillis + entry.getTtl() * 1000L);
+                out.putShort((short) entry.getAnswers().size());
+                out.putShort((short) entry.getAuthority().size());
+                for (DNSRecord record : entry.getAnswers()) writeRecord(out, record);
+                for (DNSRecord record : entry.getAuthority()) writeRecord(out, record);
+            }
+            out.force();
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    // Fills the cache from the file, if there is one; returns the number of entries restored
+    public int load() throws IOException {
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after close
+        } catch (NoSuchFileException e) {
+            return 0; // first start
+        }
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            DNSQueryLog.warn("Ignoring cache snapshot " + file + ": not a version " + VERSION + " snapshot");
+            return 0;
+        }
+        int count = in.getInt();
+        in.getLong(); // saved at
+
+        int restored = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                DNSQuestion question = DNSQuestion.readFrom(in);
+                int rcode = in.get();
+                int ttl = in.getInt();
+                long expiresAtMillis = in.getLong();
+                int answerCount = in.getShort() & 0xFFFF;
+                int authorityCount = in.getShort() & 0xFFFF;
+                List<DNSRecord> answers = new ArrayList<>(answerCount);
+                for (int r = 0; r < answerCount; r++) answers.add(DNSRecord.readFrom(in));
+                List<DNSRecord> authority = new ArrayList<>(authorityCount);
+                for (int r = 0; r < authorityCount; r++) authority.add(DNSRecord.readFrom(in));
+
+                long ageMillis = nowMillis - (expiresAtMillis - ttl * 1000L);
+                if (ageMillis < 0 || ageMillis / 1000 >= (long) ttl + cache.getStaleSeconds()) continue; // clock went back, or too old
+                cache.restore(question, new DNSCache.Entry(rcode, answers, authority, ttl, nowNanos - ageMillis * 1_000_000));
+                restored++;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            DNSQueryLog.warn("Cache snapshot " + file + " is damaged, restored the " + restored + " entries before the damage");
+        }
+        return restored;
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            DNSQueryLog.warn("Failed to save the cache snapshot: " + e);
+        }
+    }
+
+    private static long entrySize(DNSQuestion question, DNSCache.Entry entry) {
+        long size = question.getName().length + ENTRY_FIXED_SIZE;
+        for (DNSRecord record : entry.getAnswers()) size += record.size();
+        for (DNSRecord record : entry.getAuthority()) size += record.size();
+        return size;
+    }
+
+    // Owner name and the record as it is on the wire, with its original TTL
+    private static void writeRecord(ByteBuffer out, DNSRecord record) {
+        out.put(record.getName());
+        byte[] rdata = record.getRdata();
+        out.putShort(record.getType()).putShort(record.getClass_()).putInt(record.getTtl())
+                .putShort((short) rdata.length).put(rdata);
+    }
+}
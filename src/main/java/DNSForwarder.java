@@ -1,42 +1,427 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class DNSForwarder {
-    private final String resolverAddress;
-    private final int resolverPort;
+/*
+ * Long-lived, multiplexed connections to one or more upstream resolvers.
+ *
+ * Instead of opening a DatagramSocket per query, the forwarder keeps a small pool of non-blocking
+ * DatagramChannels per upstream, each bound to its own (kernel randomized) source port and
+ * connected to that resolver. Any number of queries can be outstanding on a channel at the same time:
+ *
+ *   - Every forwarded query gets a fresh random transaction ID, unique per channel, and is
+ *     remembered in the pending table under (channel, ID) together with its question bytes.
+ *   - A single selector thread reads replies from all channels. A reply completes the matching
+ *     query only if both the ID and the question section match, then the client's original ID is
+ *     put back. Anything else (late, duplicate or spoofed packets) is dropped.
+ *   - Callers get a CompletableFuture, so a worker waiting on the resolver doesn't hold a socket
+ *     and thousands of forwards can be in flight at once.
+ *
+ * With several upstreams, a slow or dead one must not set our tail latency:
+ *
+ *   - Each upstream keeps a smoothed RTT and RTT variance (RFC 6298). A query goes to the better
+ *     of two randomly picked upstreams (power of two choices), scored by SRTT times queries in
+ *     flight, so the fastest one gets most of the traffic without being overloaded.
+ *   - A try times out after the upstream's retransmission timeout (SRTT + 4 * RTTVAR, doubled
+ *     after every timeout until it answers again, at most a third of the overall timeout) instead
+ *     of a fixed 5 s, and the query is retried on a different upstream, up to MAX_ATTEMPTS tries.
+ *     SERVFAIL and REFUSED replies are retried elsewhere too, while tries are left.
+ *   - After FAILURE_THRESHOLD consecutive failures an upstream's circuit opens and it gets no
+ *     queries for a cooldown (1 s, doubling up to 30 s while it stays dead). Then a single probe
+ *     query is let through; its success closes the circuit again.
+ *   - When no upstream is usable, or every try failed, the future completes exceptionally and
+ *     the client gets SERVFAIL.
+ */
+public class DNSForwarder implements DNSUpstream {
+    static final int DEFAULT_SOCKET_COUNT = 4;
+    static final int DEFAULT_TIMEOUT_MS = 5000;
+    private static final int MAX_RESPONSE_SIZE = 65535; // largest possible UDP payload, we advertise EDNS upstream
 
-    public DNSForwarder(String resolver) {
-        String[] parts = resolver.split(":");
-        this.resolverAddress = parts[0];
-        this.resolverPort = Integer.parseInt(parts[1]);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int INITIAL_RTO_MS = 1000;        // before the first RTT sample, as in RFC 6298
+    private static final int MIN_RTO_MS = 50;
+    private static final int MAX_BACKOFF = 8;              // RTO multiplier after repeated timeouts
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_REFUSED = 5;
+
+    private final int timeoutMs;
+    private final Upstream[] upstreams;
+    private final DatagramChannel[] channels;     // all upstreams' channels, indexed by channel number
+    private final Upstream[] channelUpstream;     // owner of each channel
+    private final Selector selector;
+    private final ConcurrentHashMap<Long, PendingQuery> pending = new ConcurrentHashMap<>();
+
+    // SecureRandom so that IDs can't be predicted by an off-path attacker, one per thread to avoid contention
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    public DNSForwarder(String resolver) throws IOException {
+        this(resolver, DEFAULT_SOCKET_COUNT, DEFAULT_TIMEOUT_MS);
     }
 
+    /*
+     * resolvers is a comma separated list of host:port (port 53 if omitted), timeoutMs the most a
+     * query may take including retries. Every upstream gets socketCount channels.
+     */
+    public DNSForwarder(String resolvers, int socketCount, int timeoutMs) throws IOException {
+        this.timeoutMs = timeoutMs;
+
+        String[] addresses = resolvers.split(",");
+        this.selector = Selector.open();
+        this.upstreams = new Upstream[addresses.length];
+        this.channels = new DatagramChannel[addresses.length * socketCount];
+        this.channelUpstream = new Upstream[channels.length];
+        for (int u = 0; u < addresses.length; u++) {
+            String address = addresses[u].trim();
+            int separator = address.lastIndexOf(':');
+            InetSocketAddress resolverSocketAddress = separator < 0 ? new InetSocketAddress(address, 53)
+                    : new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+            upstreams[u] = new Upstream(address, u * socketCount, socketCount);
+            for (int i = u * socketCount; i < (u + 1) * socketCount; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channel.bind(null);                      // ephemeral port picked (and randomized) by the kernel
+                channel.connect(resolverSocketAddress);  // kernel drops datagrams from anyone but the resolver
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, i);
+                channels[i] = channel;
+                channelUpstream[i] = upstreams[u];
+            }
+        }
+
+        Thread reader = new Thread(this::readLoop, "dns-upstream-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /*
+     * Blocking variant kept for simple callers: waits for the reply and returns null on timeout or error.
+     */
     public byte[] forwardQuery(byte[] query) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(5000);
-
-            SocketAddress resolver = new InetSocketAddress(resolverAddress, resolverPort);
-            DatagramPacket forwardPacket = new DatagramPacket(query, query.length, resolver);
-            socket.send(forwardPacket);
-            System.out.println("Query forwarded to: " + resolverAddress + ":" + resolverPort);
-            System.out.println("Forwarded query ASCII is " + Utils.binaryToAscii(forwardPacket.getData()));
-
-            byte[] responseBuffer = new byte[512];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-            socket.receive(responsePacket);
-
-            System.out.println("Resolver response hex dump: " + Utils.bytesToHex(responseBuffer, responsePacket.getLength()));
-            System.out.println("Resolver response ASCII is " + Utils.binaryToAscii(responsePacket.getData()));
-
-            byte[] actualResponse = new byte[responsePacket.getLength()];
-            System.arraycopy(responseBuffer, 0, actualResponse, 0, responsePacket.getLength());
-            return actualResponse;
-        } catch (IOException e) {
-            System.out.println("Error in forwarding: " + e.getMessage());
+        try {
+            return forwardQueryAsync(query).get();
+        } catch (ExecutionException e) {
+            DNSQueryLog.warn("Error in forwarding: " + e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
         }
     }
+
+    /*
+     * Sends the query upstream and returns a future completed with the reply (carrying the query's
+     * original ID), or completed exceptionally once every try failed or the overall timeout passed.
+     */
+    @Override
+    public CompletableFuture<byte[]> forwardQueryAsync(byte[] query) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        short originalId = ByteBuffer.wrap(query).getShort(0);
+        attempt(query, result, 1, null);
+        result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        return result.thenApply(response -> {
+            response[0] = (byte) (originalId >> 8);
+            response[1] = (byte) originalId;
+            return response;
+        });
+    }
+
+    // One try, on any upstream but the previous one if there is a choice
+    private void attempt(byte[] query, CompletableFuture<byte[]> result, int attempt, Upstream previous) {
+        if (result.isDone()) return; // overall timeout
+        Upstream upstream = probeCandidate(System.nanoTime());
+        boolean probe = upstream != null;
+        if (upstream == null) upstream = select(previous);
+        if (upstream == null) {
+            result.completeExceptionally(new IOException("No upstream resolver available"));
+            return;
+        }
+        if (attempt > 1) DNSMetrics.upstreamRetry();
+
+        Upstream tried = upstream;
+        upstream.send(query, probe).whenComplete((response, error) -> {
+            boolean last = attempt >= MAX_ATTEMPTS;
+            if (error == null) {
+                int rcode = response[3] & 0x0F;
+                if (last || (rcode != RCODE_SERVFAIL && rcode != RCODE_REFUSED) || upstreams.length == 1) {
+                    result.complete(response);
+                } else {
+                    attempt(query, result, attempt + 1, tried);
+                }
+            } else if (last) {
+                result.completeExceptionally(error);
+            } else {
+                attempt(query, result, attempt + 1, tried);
+            }
+        });
+    }
+
+    // An upstream whose circuit is open but due for a probe, if this caller gets to send it
+    private Upstream probeCandidate(long now) {
+        for (Upstream upstream : upstreams) {
+            if (upstream.probeDue(now) && upstream.probing.compareAndSet(false, true)) return upstream;
+        }
+        return null;
+    }
+
+    /*
+     * Power of two choices among the upstreams with a closed circuit, avoiding the one that just
+     * failed unless it is the only one left. If either random pick is unusable, all upstreams are
+     * compared instead, so a dead upstream never hands its share of the traffic to a slow one.
+     */
+    private Upstream select(Upstream previous) {
+        int count = upstreams.length;
+        if (count > 2) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(count);
+            int second = random.nextInt(count - 1);
+            if (second >= first) second++;
+            if (usable(upstreams[first], previous) && usable(upstreams[second], previous)) {
+                return better(upstreams[first], upstreams[second], previous);
+            }
+        }
+        Upstream best = null;
+        for (Upstream upstream : upstreams) best = better(best, upstream, previous);
+        if (best == null && previous != null && previous.isClosed()) best = previous;
+        return best;
+    }
+
+    private static boolean usable(Upstream upstream, Upstream excluded) {
+        return upstream != excluded && upstream.isClosed();
+    }
+
+    private static Upstream better(Upstream best, Upstream candidate, Upstream excluded) {
+        if (!usable(candidate, excluded)) return best;
+        return best == null || candidate.score() < best.score() ? candidate : best;
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+        while (true) {
+            try {
+                selector.select();
+                for (SelectionKey selectionKey : selector.selectedKeys()) {
+                    int channelIndex = (Integer) selectionKey.attachment();
+                    DatagramChannel channel = (DatagramChannel) selectionKey.channel();
+                    // Drain everything that arrived on this channel before going back to select()
+                    while (true) {
+                        buffer.clear();
+                        int length;
+                        try {
+                            length = channel.read(buffer);
+                        } catch (IOException e) {
+                            // ICMP port unreachable etc. on a connected channel, the query will time out
+                            break;
+                        }
+                        if (length <= 0) break;
+                        onResponse(channelIndex, buffer.array(), length);
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                return; // close()
+            } catch (IOException e) {
+                DNSQueryLog.error("Upstream reader encountered IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        for (DatagramChannel channel : channels) channel.close();
+    }
+
+    private void onResponse(int channelIndex, byte[] data, int length) {
+        if (length < 12) return;
+        short id = (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+        PendingQuery pendingQuery = pending.get(pendingKey(channelIndex, id));
+        if (pendingQuery == null || !pendingQuery.matchesQuestion(data, length)) {
+            return; // late, duplicate or forged reply
+        }
+
+        byte[] response = new byte[length];
+        System.arraycopy(data, 0, response, 0, length);
+        long rttNanos = System.nanoTime() - pendingQuery.sentNanos;
+        if (pendingQuery.future.complete(response)) {
+            DNSMetrics.stage(DNSMetrics.STAGE_UPSTREAM, rttNanos);
+            channelUpstream[channelIndex].onSuccess(rttNanos);
+        }
+    }
+
+    private static long pendingKey(int channelIndex, short id) {
+        return ((long) channelIndex << 16) | (id & 0xFFFF);
+    }
+
+    /*
+     * One resolver: its channels, RTT estimate and circuit breaker. Success is reported by the
+     * reader thread, failures by whichever thread completes the try (timer or sender), so the
+     * estimator is updated under the object's lock; selection reads the volatile fields without it.
+     */
+    private final class Upstream {
+        private final String name;
+        private final int firstChannel;
+        private final int channelCount;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        private volatile long srttMicros;       // 0 until the first sample
+        private volatile long rttvarMicros;
+        private volatile int backoff = 1;
+        private int consecutiveFailures;
+        private volatile long openUntilNanos;   // 0 while the circuit is closed
+        private long cooldownNanos = MIN_COOLDOWN_NANOS;
+
+        Upstream(String name, int firstChannel, int channelCount) {
+            this.name = name;
+            this.firstChannel = firstChannel;
+            this.channelCount = channelCount;
+        }
+
+        boolean isClosed() {
+            return openUntilNanos == 0;
+        }
+
+        boolean probeDue(long now) {
+            long openUntil = openUntilNanos;
+            return openUntil != 0 && now - openUntil >= 0 && !probing.get();
+        }
+
+        // Lower is better; upstreams without samples score 0 so they get measured first
+        long score() {
+            return srttMicros * (inFlight.get() + 1);
+        }
+
+        // Never more than a third of the overall timeout, so there is always time left for retries
+        long timeoutMs() {
+            long srtt = srttMicros;
+            long rto = srtt == 0 ? INITIAL_RTO_MS : (srtt + 4 * rttvarMicros) / 1000;
+            return Math.min(timeoutMs / MAX_ATTEMPTS, Math.max(MIN_RTO_MS, rto) * backoff);
+        }
+
+        CompletableFuture<byte[]> send(byte[] query, boolean probe) {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            byte[] upstreamQuery = query.clone();
+            int channelIndex = firstChannel + ThreadLocalRandom.current().nextInt(channelCount);
+            PendingQuery pendingQuery = new PendingQuery(future, upstreamQuery);
+            long key;
+            short upstreamId;
+            do {
+                upstreamId = (short) RANDOM.get().nextInt();
+                key = pendingKey(channelIndex, upstreamId);
+            } while (pending.putIfAbsent(key, pendingQuery) != null);
+
+            upstreamQuery[0] = (byte) (upstreamId >> 8);
+            upstreamQuery[1] = (byte) upstreamId;
+
+            final long pendingKey = key;
+            inFlight.incrementAndGet();
+            future.whenComplete((response, error) -> {
+                pending.remove(pendingKey, pendingQuery);
+                inFlight.decrementAndGet();
+                if (error == null) return; // onSuccess() already ran on the reader thread
+                if (error instanceof TimeoutException) DNSMetrics.upstreamTimeout();
+                else DNSMetrics.upstreamError();
+                onFailure(error instanceof TimeoutException, probe);
+            });
+
+            DNSMetrics.upstreamQuery();
+            pendingQuery.sentNanos = System.nanoTime();
+            try {
+                channels[channelIndex].write(ByteBuffer.wrap(upstreamQuery));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+            future.orTimeout(timeoutMs(), TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        synchronized void onSuccess(long rttNanos) {
+            long sample = Math.max(1, rttNanos / 1000);
+            if (srttMicros == 0) {
+                srttMicros = sample;
+                rttvarMicros = sample / 2;
+            } else {
+                rttvarMicros = (3 * rttvarMicros + Math.abs(srttMicros - sample)) / 4;
+                srttMicros = (7 * srttMicros + sample) / 8;
+            }
+            backoff = 1;
+            consecutiveFailures = 0;
+            if (openUntilNanos != 0) {
+                DNSQueryLog.info("Upstream " + name + " is answering again");
+                openUntilNanos = 0;
+                cooldownNanos = MIN_COOLDOWN_NANOS;
+            }
+            probing.set(false);
+        }
+
+        synchronized void onFailure(boolean timeout, boolean probe) {
+            if (timeout) backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            consecutiveFailures++;
+            long now = System.nanoTime();
+            if (probe) {
+                cooldownNanos = Math.min(cooldownNanos * 2, MAX_COOLDOWN_NANOS);
+                openUntilNanos = now + cooldownNanos;
+                probing.set(false);
+            } else if (openUntilNanos == 0 && consecutiveFailures >= FAILURE_THRESHOLD) {
+                DNSQueryLog.warn("Upstream " + name + " failed " + consecutiveFailures + " times in a row, not using it for "
+                        + TimeUnit.NANOSECONDS.toMillis(cooldownNanos) + " ms");
+                openUntilNanos = now + cooldownNanos;
+            }
+        }
+    }
+
+    // A query waiting for its reply; also used by DNSRecursor
+    static class PendingQuery {
+        final CompletableFuture<byte[]> future;
+        private final byte[] query;
+        private final int questionEnd;
+        volatile long sentNanos;
+
+        PendingQuery(CompletableFuture<byte[]> future, byte[] query) {
+            this.future = future;
+            this.query = query;
+
+            ByteBuffer queryPacket = ByteBuffer.wrap(query);
+            queryPacket.position(12);
+            for (int i = queryPacket.getShort(4); i > 0; i--) {
+                DNSName.skip(queryPacket);
+                queryPacket.position(queryPacket.position() + 4); // QTYPE + QCLASS
+            }
+            this.questionEnd = queryPacket.position();
+        }
+
+        /*
+         * The reply must echo our question section byte for byte (names compared case-insensitively).
+         * Queries are built by us with uncompressed names, so comparing the raw bytes is enough.
+         */
+        boolean matchesQuestion(byte[] response, int length) {
+            if (length < questionEnd) return false;
+            if (response[4] != query[4] || response[5] != query[5]) return false; // QDCOUNT
+            for (int i = 12; i < questionEnd; i++) {
+                if (DNSName.toLower(response[i]) != DNSName.toLower(query[i])) return false;
+            }
+            return true;
+        }
+    }
 }
@@ -1,84 +1,150 @@
+import java.nio.ByteBuffer;
+
+/*
+ * Flyweight accessors for the 12 byte DNS header.
+ *
+ * Nothing is copied into a header object: every getter/setter reads or writes the field in place,
+ * at its fixed offset in a message buffer that starts at index 0. All accesses are absolute
+ * (get(index)/put(index, ...)), so they never move the buffer's position.
+ *
+ *                                 1  1  1  1  1  1
+ *   0  1  2  3  4  5  6  7  8  9  0  1  2  3  4  5
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |                      ID                       |   offset 0
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |QR|   Opcode  |AA|TC|RD|RA|   Z    |   RCODE   |   offset 2 (flags1) and 3 (flags2)
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |                    QDCOUNT                    |   offset 4
+ * |                    ANCOUNT                    |   offset 6
+ * |                    NSCOUNT                    |   offset 8
+ * |                    ARCOUNT                    |   offset 10
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ */
 public class DNSHeader {
-    private short id; // sort = 2 bytes = 16bits
-    private byte flags1;
-    private byte flags2;
-    private short qdCount;
-    private short anCount;
-    private short nsCount;
-    private short arCount;
+    public static final int SIZE = 12; // DNS header is always 12 bytes
 
-    public DNSHeader() {
-        this.id = 1234; // Expected value
-        this.flags1 = (byte) 0x80; // QR=1, OPCODE=0, AA=0, TC=0, RD=0
-        this.flags2 = 0x00; // RA=0, Z=0, RCODE=0
-        this.qdCount = 0;
-        this.anCount = 0;
-        this.nsCount = 0;
-        this.arCount = 0;
-    }
+    private static final int FLAGS1 = 2;
+    private static final int FLAGS2 = 3;
+    private static final int QDCOUNT = 4;
+    private static final int ANCOUNT = 6;
+    private static final int NSCOUNT = 8;
+    private static final int ARCOUNT = 10;
 
-    public byte[] toBytes() {
-        byte[] header = new byte[12]; // DNS header is always 12 bytes
+    /*
+     * Writes an empty response header at the start of the buffer:
+     * QR=1, OPCODE=0, AA=0, TC=0, RD=0, RA=0, Z=0, RCODE=0 and all counts 0.
+     * The buffer's position is moved right after the header.
+     */
+    public static void writeEmpty(ByteBuffer message, short id) {
+        message.putShort(0, id);
+        message.put(FLAGS1, (byte) 0x80);
+        message.put(FLAGS2, (byte) 0x00);
+        message.putShort(QDCOUNT, (short) 0);
+        message.putShort(ANCOUNT, (short) 0);
+        message.putShort(NSCOUNT, (short) 0);
+        message.putShort(ARCOUNT, (short) 0);
+        message.position(SIZE);
+    }
 
-        // ID (16 bits) - converting short to two bytes
-        header[0] = (byte) (id >> 8); // Get high byte (left side first 8 bits)
-        header[1] = (byte) id; // Get low byte (remaining right side 8 bits)
+    public static short getId(ByteBuffer message) {
+        return message.getShort(0);
+    }
 
-        // Flags (2 bytes)
-        header[2] = flags1;
-        header[3] = flags2;
+    public static void setId(ByteBuffer message, short id) {
+        message.putShort(0, id);
+    }
 
-        // Question count (16 bits)
-        header[4] = (byte) (qdCount >> 8);
-        header[5] = (byte) qdCount;
+    public static boolean isQR(ByteBuffer message) {
+        return (message.get(FLAGS1) & 0b10000000) != 0;
+    }
 
-        // Answer count (16 bits)
-        header[6] = (byte) (anCount >> 8);
-        header[7] = (byte) anCount;
+    public static void setQR(ByteBuffer message, boolean qr) {
+        // QR is the most significant bit in flags1 (1 = response, 0 = query)
+        setFlag1(message, 0b10000000, qr);
+    }
 
-        // Authority count (16 bits)
-        header[8] = (byte) (nsCount >> 8);
-        header[9] = (byte) nsCount;
+    public static int getOC(ByteBuffer message) {
+        // OPCODE is bits 1-4 in flags1
+        return (message.get(FLAGS1) >> 3) & 0b00001111;
+    }
 
-        // Additional count (16 bits)
-        header[10] = (byte) (arCount >> 8);
-        header[11] = (byte) arCount;
+    public static void setOC(ByteBuffer message, int opCode) {
+        // Clear the OPCODE bits first, then shift opCode into position and set
+        byte flags1 = (byte) (message.get(FLAGS1) & 0b10000111);
+        message.put(FLAGS1, (byte) (flags1 | ((opCode & 0b00001111) << 3)));
+    }
 
-        return header;
+    public static boolean isAA(ByteBuffer message) {
+        return (message.get(FLAGS1) & 0b00000100) != 0;
     }
 
-    public void setQuestionCount(short count) {
-        this.qdCount = count;
+    public static void setAA(ByteBuffer message, boolean aa) {
+        // AA is the bit right after the opcode in flags1
+        setFlag1(message, 0b00000100, aa);
     }
 
-    public void setAnswerCount(short count){
-        this.anCount = count;
+    public static boolean isTC(ByteBuffer message) {
+        return (message.get(FLAGS1) & 0b00000010) != 0;
     }
 
-    public void setId(short id){
-        this.id = id;
+    public static void setTC(ByteBuffer message, boolean tc) {
+        // TC is the second least significant bit in flags1
+        setFlag1(message, 0b00000010, tc);
     }
 
-    public void setOC(int opCode){ //4 bytes
-        // OPCODE is bits 1-4 in flags1
-        // Clear the OPCODE bits first
-        this.flags1 &= 0b10000111;
-        // Shift opCode into position and set
-        this.flags1 |= (opCode << 3);
+    public static boolean isRD(ByteBuffer message) {
+        return (message.get(FLAGS1) & 0b00000001) != 0;
     }
 
-    public void setRD(boolean rd) {
+    public static void setRD(ByteBuffer message, boolean rd) {
         // RD is the least significant bit in flags1
-        if (rd) {
-            flags1 |= 0b00000001;  // Set bit 0
-        } else {
-            flags1 &= 0b11111110;  // Clear bit 0
-        }
+        setFlag1(message, 0b00000001, rd);
+    }
+
+    public static int getRC(ByteBuffer message) {
+        return message.get(FLAGS2) & 0b00001111;
+    }
+
+    public static void setRC(ByteBuffer message, int rcCode) {
+        // clear last 4 bits which signifies RC in flags2, then set RC value
+        byte flags2 = (byte) (message.get(FLAGS2) & 0b11110000);
+        message.put(FLAGS2, (byte) (flags2 | (rcCode & 0b00001111)));
+    }
+
+    public static int getQuestionCount(ByteBuffer message) {
+        return message.getShort(QDCOUNT) & 0xFFFF;
+    }
+
+    public static void setQuestionCount(ByteBuffer message, int count) {
+        message.putShort(QDCOUNT, (short) count);
+    }
+
+    public static int getAnswerCount(ByteBuffer message) {
+        return message.getShort(ANCOUNT) & 0xFFFF;
+    }
+
+    public static void setAnswerCount(ByteBuffer message, int count) {
+        message.putShort(ANCOUNT, (short) count);
+    }
+
+    public static int getAuthorityCount(ByteBuffer message) {
+        return message.getShort(NSCOUNT) & 0xFFFF;
+    }
+
+    public static void setAuthorityCount(ByteBuffer message, int count) {
+        message.putShort(NSCOUNT, (short) count);
+    }
+
+    public static int getAdditionalCount(ByteBuffer message) {
+        return message.getShort(ARCOUNT) & 0xFFFF;
+    }
+
+    public static void setAdditionalCount(ByteBuffer message, int count) {
+        message.putShort(ARCOUNT, (short) count);
     }
 
-    public void setRC(int rcCode){
-        //clear last 4 bits which signifies RC in flags2
-        this.flags2 &= 0b11110000;
-        flags2 |= rcCode;  // Set RC value
+    private static void setFlag1(ByteBuffer message, int mask, boolean set) {
+        byte flags1 = message.get(FLAGS1);
+        message.put(FLAGS1, (byte) (set ? flags1 | mask : flags1 & ~mask));
     }
 }
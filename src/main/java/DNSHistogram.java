@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Latency histogram with log-linear buckets, in the spirit of HdrHistogram.
+ *
+ * Values are recorded in microseconds. 0-3 us get a bucket each; above that every power of two
+ * is split into 4 equal sub-buckets, so a bucket is never wider than 25% of its lower bound
+ * (e.g. 1024-1279 us, 1280-1535 us, ...). Values of 2^31 us (about 36 minutes) or more land in the
+ * last bucket. Recording is one LongAdder increment per bucket plus one for the sum, so threads
+ * recording at the same time do not contend on a single counter.
+ */
+public class DNSHistogram {
+    private static final int SUB_BUCKETS = 4;              // per power of two
+    private static final int MAX_EXPONENT = 30;            // last regular range is [2^30, 2^31) us
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - 1) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public DNSHistogram() {
+        for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[bucketIndex(nanos / 1000)].increment();
+        sumNanos.add(nanos);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int subBucket = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - 2) * SUB_BUCKETS + subBucket;
+    }
+
+    // Exclusive upper bound of a bucket in microseconds
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index + 1;
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + 2;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - 2);
+        return (1L << exponent) + (subBucket + 1) * width;
+    }
+
+    /*
+     * Snapshot of the bucket counts. Buckets are read one by one while other threads keep recording,
+     * so the snapshot is not atomic, which is fine for monitoring.
+     */
+    public long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) snapshot[i] = counts[i].sum();
+        return snapshot;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    // Upper bound (in microseconds) of the bucket holding the given quantile (0..1) of a snapshot
+    public static long percentile(long[] snapshot, double quantile) {
+        long total = 0;
+        for (long count : snapshot) total += count;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return bucketUpperBound(i);
+        }
+        return bucketUpperBound(snapshot.length - 1);
+    }
+
+    /*
+     * Appends the histogram in Prometheus text format. Only the power-of-two boundaries are exported
+     * as "le" buckets (plus +Inf) to keep the output short; they are exact because sub-buckets never
+     * straddle a power of two.
+     */
+    public void writePrometheus(StringBuilder out, String name, String labels) {
+        long[] snapshot = snapshot();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += snapshot[i];
+            long upper = bucketUpperBound(i);
+            if (Long.bitCount(upper) == 1 && i < BUCKETS - 1) { // ends on a power of two
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(upper / 1e6).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+        }
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(getSumNanos() / 1e9).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,258 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Process-wide counters and latency histograms, exported in Prometheus text format by
+ * DNSMetricsServer.
+ *
+ * Everything is a LongAdder (striped, so threads do not fight over one cache line) or a
+ * DNSHistogram built from them. Recording never allocates or locks.
+ *
+ * Stages timed per request:
+ *   parse     header + question section copied into the response, EDNS parsed
+ *   cache     one answer cache lookup
+ *   upstream  round trip of one forwarded query (send to reply, measured on the reader thread)
+ *   zone      authoritative lookup, answer sections included
+ *   encode    writing cached/forwarded records into the response
+ *   send      handing a UDP response to the socket
+ * plus the whole request (receive to response ready) per response code.
+ */
+public class DNSMetrics {
+    public static final int STAGE_PARSE = 0;
+    public static final int STAGE_CACHE = 1;
+    public static final int STAGE_UPSTREAM = 2;
+    public static final int STAGE_ZONE = 3;
+    public static final int STAGE_ENCODE = 4;
+    public static final int STAGE_SEND = 5;
+    private static final String[] STAGE_NAMES = {"parse", "cache", "upstream", "zone", "encode", "send"};
+
+    // What a DNSRateLimiter did to a packet
+    public static final int LIMIT_QUERY = 0;
+    public static final int LIMIT_RESPONSE = 1;
+    public static final int LIMIT_SLIP = 2;
+    private static final String[] LIMIT_NAMES = {"drop_query", "drop_response", "slip"};
+
+    private static final String[] RCODE_NAMES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED", "YXDOMAIN", "YXRRSET",
+            "NXRRSET", "NOTAUTH", "NOTZONE", "RCODE11", "RCODE12", "RCODE13", "RCODE14", "RCODE15"};
+    private static final int MAX_TRACKED_QTYPE = 256; // higher types are counted as "other"
+
+    private static final LongAdder[] queriesByProto = {new LongAdder(), new LongAdder()};
+    private static final LongAdder[] responsesByRcode = adders(16);
+    private static final LongAdder[] queriesByType = adders(MAX_TRACKED_QTYPE + 1);
+    private static final DNSHistogram[] stageLatency = histograms(STAGE_NAMES.length);
+    private static final DNSHistogram[] requestLatency = histograms(16); // by rcode
+
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+    private static final LongAdder prefetches = new LongAdder();
+    private static final LongAdder staleAnswers = new LongAdder();
+    private static final LongAdder upstreamQueries = new LongAdder();
+    private static final LongAdder upstreamRetries = new LongAdder();
+    private static final LongAdder upstreamCoalesced = new LongAdder();
+    private static final LongAdder upstreamTimeouts = new LongAdder();
+    private static final LongAdder upstreamErrors = new LongAdder();
+    private static final LongAdder referrals = new LongAdder();
+    private static final LongAdder[] rateLimited = adders(3);
+    private static final LongAdder shed = new LongAdder();
+    private static final LongAdder truncated = new LongAdder();
+    private static final LongAdder reloads = new LongAdder();
+    private static final LongAdder reloadFailures = new LongAdder();
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private static DNSHistogram[] histograms(int count) {
+        DNSHistogram[] histograms = new DNSHistogram[count];
+        for (int i = 0; i < count; i++) histograms[i] = new DNSHistogram();
+        return histograms;
+    }
+
+    public static void stage(int stage, long nanos) {
+        stageLatency[stage].record(nanos);
+    }
+
+    /*
+     * Records an answered request from its response: transport, RCODE, the first question's QTYPE
+     * and the time since startNanos.
+     */
+    public static void request(int proto, ByteBuffer response, int length, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        queriesByProto[proto].increment();
+        if (length < DNSHeader.SIZE) return;
+        int rcode = DNSHeader.getRC(response);
+        responsesByRcode[rcode].increment();
+        requestLatency[rcode].record(nanos);
+        if (DNSHeader.getQuestionCount(response) > 0) {
+            try {
+                int qtype = response.getShort(DNSName.skip(response, DNSHeader.SIZE)) & 0xFFFF;
+                queriesByType[Math.min(qtype, MAX_TRACKED_QTYPE)].increment();
+            } catch (RuntimeException e) {
+                // header-only error response, nothing more to count
+            }
+        }
+    }
+
+    public static void cacheLookup(boolean hit) {
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+
+    public static void prefetch() {
+        prefetches.increment();
+    }
+
+    public static void staleAnswer() {
+        staleAnswers.increment();
+    }
+
+    public static void upstreamQuery() {
+        upstreamQueries.increment();
+    }
+
+    public static void upstreamRetry() {
+        upstreamRetries.increment();
+    }
+
+    public static void upstreamCoalesced() {
+        upstreamCoalesced.increment();
+    }
+
+    public static void upstreamTimeout() {
+        upstreamTimeouts.increment();
+    }
+
+    public static void upstreamError() {
+        upstreamErrors.increment();
+    }
+
+    public static void referral() {
+        referrals.increment();
+    }
+
+    // One packet hit a DNSRateLimiter limit
+    public static void rateLimited(int action) {
+        rateLimited[action].increment();
+    }
+
+    public static void shed() {
+        shed.increment();
+    }
+
+    public static void truncated() {
+        truncated.increment();
+    }
+
+    // A DNSReloader reload, failed ones keep the previous settings
+    public static void reload(boolean ok) {
+        (ok ? reloads : reloadFailures).increment();
+    }
+
+    // Request latency percentiles in microseconds across all response codes (for reports)
+    public static long requestPercentile(double quantile) {
+        long[] merged = null;
+        for (DNSHistogram histogram : requestLatency) {
+            long[] snapshot = histogram.snapshot();
+            if (merged == null) merged = snapshot;
+            else for (int i = 0; i < merged.length; i++) merged[i] += snapshot[i];
+        }
+        return DNSHistogram.percentile(merged, quantile);
+    }
+
+    // The whole registry in Prometheus text exposition format (version 0.0.4)
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        header(out, "dns_queries_total", "counter", "Queries answered, by transport.");
+        out.append("dns_queries_total{proto=\"udp\"} ").append(queriesByProto[DNSQueryLog.PROTO_UDP].sum()).append('\n');
+        out.append("dns_queries_total{proto=\"tcp\"} ").append(queriesByProto[DNSQueryLog.PROTO_TCP].sum()).append('\n');
+
+        header(out, "dns_responses_total", "counter", "Responses sent, by response code.");
+        for (int rcode = 0; rcode < RCODE_NAMES.length; rcode++) {
+            long count = responsesByRcode[rcode].sum();
+            if (count > 0 || rcode <= 5) {
+                out.append("dns_responses_total{rcode=\"").append(RCODE_NAMES[rcode]).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        header(out, "dns_queries_by_type_total", "counter", "Queries answered, by the first question's type.");
+        for (int qtype = 0; qtype <= MAX_TRACKED_QTYPE; qtype++) {
+            long count = queriesByType[qtype].sum();
+            if (count > 0) {
+                out.append("dns_queries_by_type_total{qtype=\"").append(typeName(qtype)).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        header(out, "dns_cache_lookups_total", "counter", "Answer cache lookups.");
+        out.append("dns_cache_lookups_total{result=\"hit\"} ").append(cacheHits.sum()).append('\n');
+        out.append("dns_cache_lookups_total{result=\"miss\"} ").append(cacheMisses.sum()).append('\n');
+        header(out, "dns_cache_prefetches_total", "counter", "Background refreshes of popular entries close to expiry.");
+        out.append("dns_cache_prefetches_total ").append(prefetches.sum()).append('\n');
+        header(out, "dns_cache_stale_answers_total", "counter", "Answers served from expired entries because the upstream failed or was slow (RFC 8767).");
+        out.append("dns_cache_stale_answers_total ").append(staleAnswers.sum()).append('\n');
+
+        header(out, "dns_upstream_queries_total", "counter", "Queries sent to upstream resolvers, retries included.");
+        out.append("dns_upstream_queries_total ").append(upstreamQueries.sum()).append('\n');
+        header(out, "dns_upstream_retries_total", "counter", "Upstream queries that were a retry on another upstream.");
+        out.append("dns_upstream_retries_total ").append(upstreamRetries.sum()).append('\n');
+        header(out, "dns_upstream_coalesced_total", "counter", "Cache misses that joined an upstream query already in flight for the same question.");
+        out.append("dns_upstream_coalesced_total ").append(upstreamCoalesced.sum()).append('\n');
+        header(out, "dns_upstream_failures_total", "counter", "Upstream queries that got no usable reply.");
+        out.append("dns_upstream_failures_total{reason=\"timeout\"} ").append(upstreamTimeouts.sum()).append('\n');
+        out.append("dns_upstream_failures_total{reason=\"error\"} ").append(upstreamErrors.sum()).append('\n');
+
+        header(out, "dns_recursion_referrals_total", "counter", "Referrals followed while resolving from the root (--recursive).");
+        out.append("dns_recursion_referrals_total ").append(referrals.sum()).append('\n');
+
+        header(out, "dns_rate_limited_total", "counter", "UDP packets hit by the per-client query limit or response rate limiting.");
+        for (int action = 0; action < LIMIT_NAMES.length; action++) {
+            out.append("dns_rate_limited_total{action=\"").append(LIMIT_NAMES[action]).append("\"} ").append(rateLimited[action].sum()).append('\n');
+        }
+
+        header(out, "dns_shed_total", "counter", "Requests answered with SERVFAIL because all workers were busy.");
+        out.append("dns_shed_total ").append(shed.sum()).append('\n');
+        header(out, "dns_truncated_total", "counter", "Responses truncated (TC bit) because they did not fit.");
+        out.append("dns_truncated_total ").append(truncated.sum()).append('\n');
+        header(out, "dns_config_reloads_total", "counter", "Configuration and zone reloads.");
+        out.append("dns_config_reloads_total{result=\"ok\"} ").append(reloads.sum()).append('\n');
+        out.append("dns_config_reloads_total{result=\"error\"} ").append(reloadFailures.sum()).append('\n');
+
+        header(out, "dns_stage_duration_seconds", "histogram", "Time spent per processing stage.");
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            stageLatency[stage].writePrometheus(out, "dns_stage_duration_seconds", "stage=\"" + STAGE_NAMES[stage] + "\"");
+        }
+
+        header(out, "dns_request_duration_seconds", "histogram", "Time from receiving a query to its response being ready, by response code.");
+        for (int rcode = 0; rcode < RCODE_NAMES.length; rcode++) {
+            if (responsesByRcode[rcode].sum() > 0) {
+                requestLatency[rcode].writePrometheus(out, "dns_request_duration_seconds", "rcode=\"" + RCODE_NAMES[rcode] + "\"");
+            }
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String typeName(int qtype) {
+        switch (qtype) {
+            case DNSRecord.TYPE_A: return "A";
+            case DNSRecord.TYPE_NS: return "NS";
+            case DNSRecord.TYPE_CNAME: return "CNAME";
+            case DNSRecord.TYPE_SOA: return "SOA";
+            case DNSRecord.TYPE_PTR: return "PTR";
+            case DNSRecord.TYPE_MX: return "MX";
+            case DNSRecord.TYPE_TXT: return "TXT";
+            case DNSRecord.TYPE_AAAA: return "AAAA";
+            case 33: return "SRV";
+            case 65: return "HTTPS";
+            case DNSRecord.TYPE_ANY: return "ANY";
+            case MAX_TRACKED_QTYPE: return "other";
+            default: return "TYPE" + qtype;
+        }
+    }
+}
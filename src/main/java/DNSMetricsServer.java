@@ -0,0 +1,57 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/*
+ * Local HTTP endpoint for monitoring and control, bound to the loopback address only.
+ *
+ *   GET  /metrics  DNSMetrics in Prometheus text format
+ *   POST /reload   reloads the configuration and the zones (DNSReloader); 200 with a summary, or
+ *                  500 with the reason the current settings were kept
+ *
+ * Uses the JDK's built-in HTTP server on a single background thread; scrapes are rare, so this
+ * costs nothing on the query path.
+ */
+public class DNSMetricsServer {
+    private final HttpServer server;
+
+    public DNSMetricsServer(int port, DNSReloader reloader) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, 200, DNSMetrics.prometheus()));
+        server.createContext("/reload", exchange -> {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Use POST\n");
+                return;
+            }
+            try {
+                respond(exchange, 200, reloader.reload() + "\n");
+            } catch (IOException e) {
+                respond(exchange, 500, "Reload failed: " + e + "\n");
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "dns-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+public class DNSName {
+    // A pointer chain longer than this can only come from a malformed (or malicious) packet
+    private static final int MAX_POINTER_JUMPS = 64;
+    // RFC 1035 section 2.3.4: labels are 63 bytes at most, a name 255 bytes (length bytes and root included)
+    public static final int MAX_LABEL_LENGTH = 63;
+    public static final int MAX_LENGTH = 255;
+    public static final int MAX_LABELS = 127;
+
+    /*
+     * Reads a (possibly compressed) domain name starting at the buffer's current position
+     * and returns it in uncompressed wire format (length-prefixed labels ending with 0x00).
+     *
+     * The buffer's position is left right after the name as it appears in the message,
+     * i.e. after the terminating 0x00 or after the first 2-byte compression pointer.
+     * Pointer targets are read with absolute get(index) calls so the position is never
+     * moved around while following them. Names breaking the RFC 1035 limits (see checkLabel())
+     * throw IllegalArgumentException, like any other malformed name.
+     */
+    public static byte[] read(ByteBuffer message) {
+        ByteArrayOutputStream name = new ByteArrayOutputStream();
+        int index = message.position();
+        int endOfName = -1; // position right after the name in the original stream
+        int jumps = 0;
+        int labels = 0;
+
+        while (true) {
+            int labelLength = message.get(index) & 0xFF;
+
+            if ((labelLength & 0xC0) == 0xC0) {
+                int offset = ((labelLength & 0x3F) << 8) | (message.get(index + 1) & 0xFF);
+                if (endOfName < 0) endOfName = index + 2;
+                if (++jumps > MAX_POINTER_JUMPS) throw new IllegalArgumentException("Compression pointer loop");
+                index = offset;
+                continue;
+            }
+
+            checkLabel(labelLength, name.size(), labels++);
+            name.write(labelLength);
+            index++;
+            if (labelLength == 0) break;
+
+            for (int i = 0; i < labelLength; i++) {
+                name.write(message.get(index++));
+            }
+        }
+
+        message.position(endOfName < 0 ? index : endOfName);
+        return name.toByteArray();
+    }
+
+    /*
+     * Allocation-free variant of read(): decompresses the name found at `offset` of `source`
+     * straight into `dest` at dest's position. Only absolute reads are done on the source.
+     * Returns the offset right after the name as it appears in the source message. At most
+     * MAX_LENGTH bytes are written to dest; longer names throw IllegalArgumentException.
+     */
+    public static int copy(ByteBuffer source, int offset, ByteBuffer dest) {
+        int index = offset;
+        int endOfName = -1;
+        int jumps = 0;
+        int length = 0;
+        int labels = 0;
+
+        while (true) {
+            int labelLength = source.get(index) & 0xFF;
+
+            if ((labelLength & 0xC0) == 0xC0) {
+                int pointer = ((labelLength & 0x3F) << 8) | (source.get(index + 1) & 0xFF);
+                if (endOfName < 0) endOfName = index + 2;
+                if (++jumps > MAX_POINTER_JUMPS) throw new IllegalArgumentException("Compression pointer loop");
+                index = pointer;
+                continue;
+            }
+
+            checkLabel(labelLength, length, labels++);
+            length += labelLength + 1;
+            dest.put((byte) labelLength);
+            index++;
+            if (labelLength == 0) break;
+
+            for (int i = 0; i < labelLength; i++) {
+                dest.put(source.get(index++));
+            }
+        }
+
+        return endOfName < 0 ? index : endOfName;
+    }
+
+    /*
+     * Rejects a label of labelLength bytes that would follow `length` bytes and `labels` labels of
+     * an uncompressed name: label types other than plain labels and pointers (RFC 6891 section 5),
+     * and names past 63 bytes per label, 255 bytes or 127 labels.
+     */
+    private static void checkLabel(int labelLength, int length, int labels) {
+        if (labelLength > MAX_LABEL_LENGTH) throw new IllegalArgumentException("Unsupported label type or length " + labelLength);
+        if (length + labelLength + 1 > MAX_LENGTH || (labelLength != 0 && labels >= MAX_LABELS)) {
+            throw new IllegalArgumentException("Name longer than " + MAX_LENGTH + " bytes or " + MAX_LABELS + " labels");
+        }
+    }
+
+    // Uncompressed length of the (possibly compressed) name starting at `offset`, root included
+    public static int length(ByteBuffer message, int offset) {
+        int length = 0;
+        int jumps = 0;
+        while (true) {
+            int labelLength = message.get(offset) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (++jumps > MAX_POINTER_JUMPS) throw new IllegalArgumentException("Compression pointer loop");
+                offset = ((labelLength & 0x3F) << 8) | (message.get(offset + 1) & 0xFF);
+                continue;
+            }
+            length += labelLength + 1;
+            if (labelLength == 0) return length;
+            offset += labelLength + 1;
+        }
+    }
+
+    // Length of the uncompressed name starting at name[start], root included
+    public static int length(byte[] name, int start) {
+        int index = start;
+        while (name[index] != 0) index += name[index] + 1;
+        return index + 1 - start;
+    }
+
+    // Moves the buffer's position past a (possibly compressed) name without decoding it
+    public static void skip(ByteBuffer message) {
+        while (true) {
+            int labelLength = message.get() & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                message.get(); // second byte of the pointer, a pointer always ends the name
+                return;
+            }
+            if (labelLength == 0) return;
+            message.position(message.position() + labelLength);
+        }
+    }
+
+    // Absolute variant of skip(): returns the offset right after the name starting at `offset`
+    public static int skip(ByteBuffer message, int offset) {
+        while (true) {
+            int labelLength = message.get(offset) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) return offset + 2;
+            if (labelLength == 0) return offset + 1;
+            offset += labelLength + 1;
+        }
+    }
+
+    // DNS names are case-insensitive (RFC 4343), only ASCII letters are folded
+    public static boolean equalsIgnoreCase(byte[] a, byte[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++) {
+            if (toLower(a[i]) != toLower(b[i])) return false;
+        }
+        return true;
+    }
+
+    public static int hashIgnoreCase(byte[] name) {
+        int hash = 1;
+        for (byte b : name) {
+            hash = 31 * hash + toLower(b);
+        }
+        return hash;
+    }
+
+    public static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + 32) : b;
+    }
+
+    // "codecrafters.io." style rendering, used for logging only
+    public static String toString(byte[] name) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < name.length && name[i] != 0) {
+            int labelLength = name[i++];
+            for (int j = 0; j < labelLength; j++) {
+                sb.append((char) name[i++]);
+            }
+            sb.append('.');
+        }
+        return sb.length() == 0 ? "." : sb.toString();
+    }
+}
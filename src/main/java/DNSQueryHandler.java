@@ -1,96 +1,439 @@
-import java.io.ByteArrayOutputStream;
-import java.net.DatagramPacket;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
+/*
+ * Turns a query packet into a response packet.
+ *
+ * A handler is created once per worker thread and reused for every request that thread serves:
+ * the query is read in place from the receive buffer and the response is written in place into
+ * the caller's (pooled) response buffer. The built-in answer path (no --resolver) and the
+ * authoritative path (--zone) allocate nothing; per-request state is limited to a few offsets kept in
+ * arrays that only grow.
+ *
+ * Where an answer comes from:
+ *   - every question is inside a loaded zone        the zones (DNSZoneResolver)
+ *   - otherwise, with --resolver or --recursive     the cache / the upstream (DNSForwarder, DNSRecursor)
+ *   - otherwise, with zones loaded                  the zones, which refuse the out-of-zone questions
+ *   - neither zones nor resolver                    a fixed 8.8.8.8 answer
+ *
+ * The upstream and zones come from the current DNSSettings snapshot, looked at once per request: a
+ * reload takes effect from the next request on, and a request in progress finishes with what it
+ * started with.
+ */
 public class DNSQueryHandler {
-    private ByteBuffer queryPacketBuffer;
-    private ByteBuffer responsePacketBuffer;
+    private final DNSCache cache;
+    private final AtomicReference<DNSSettings> settings;
+    private DNSSettings current;            // the snapshot forwarder and zoneResolver belong to
+    private DNSUpstream forwarder;          // null when neither --resolver nor --recursive is configured
+    private DNSZoneResolver zoneResolver;   // null without --zone
 
-    DNSQueryHandler(DatagramPacket packet){
-        byte[] data = packet.getData(); //retrieves the raw byte array from the UDP DatagramPacket that contains the incoming DNS query data.
-        queryPacketBuffer = ByteBuffer.wrap(data); // creates a wrapper around those raw bytes that lets us read them as different data types (bytes, shorts, ints) and keep track of our position while reading
-        responsePacketBuffer = ByteBuffer.allocate(512);
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int NO_OPT = -1;
+    private static final int MULTIPLE_OPT = -2;
+    static final int NEEDS_UPSTREAM = -2; // resolveLocally(): the answer has to wait for the upstream
+    private static final DNSAnswer DEFAULT_ANSWER = new DNSAnswer("8.8.8.8");
+
+    // Where each question's name starts in the response buffer
+    private int[] questionNameOffsets = new int[8];
+    private final NameCompressor compressor = new NameCompressor();
+    private final int ednsUdpSize;
+    private boolean localOnly; // set for the duration of resolveLocally()
+    private Lookup carried;    // set for the duration of resolveQuery() with the listener's lookups
+    private Lookup pending;    // the lookups of the last resolveLocally() that returned NEEDS_UPSTREAM
+
+    DNSQueryHandler(DNSCache cache, DNSUpstream forwarder, DNSZones zones, int ednsUdpSize){
+        this(cache, new AtomicReference<>(new DNSSettings(forwarder, zones, null)), ednsUdpSize);
     }
 
-    byte[] resolveQuery(){
+    DNSQueryHandler(DNSCache cache, AtomicReference<DNSSettings> settings, int ednsUdpSize){
+        this.cache = cache;
+        this.settings = settings;
+        this.ednsUdpSize = ednsUdpSize; // largest UDP response we are willing to send (and advertise)
+    }
 
-        short questionCountFromHeader = parseAndCreateResponseHeader(responsePacketBuffer, queryPacketBuffer); //get response header
+    /*
+     * Reads the query in [0, limit) of queryPacketBuffer and writes the response from index 0 of
+     * responsePacketBuffer. Returns the response length; the response buffer's position is left at
+     * the end of the response. Malformed queries surface as runtime exceptions.
+     *
+     * maxLength is the transport's limit for clients without EDNS: 512 for UDP, 65535 for TCP. If the
+     * query carries an OPT record, UDP responses may grow up to the client's advertised payload size
+     * (capped by our own --edns-udp-size) and the response carries our OPT record too.
+     * A response longer than the limit is truncated to the header and question section with the TC
+     * bit set, so the client retries over TCP.
+     */
+    int resolveQuery(ByteBuffer queryPacketBuffer, ByteBuffer responsePacketBuffer, int maxLength){
+        return resolveQuery(queryPacketBuffer, responsePacketBuffer, maxLength, null);
+    }
 
-        List<byte[]> domains = new ArrayList<>();
-        for(int i=0; i<questionCountFromHeader; i++){
-            byte[] domain = copyQuestionSection(queryPacketBuffer, responsePacketBuffer);
-            domains.add(domain);
+    /*
+     * resolveQuery() for a query that resolveLocally() gave up on: lookup (from pendingLookup(), null
+     * if there was none) replaces looking its questions up in the cache again.
+     */
+    int resolveQuery(ByteBuffer queryPacketBuffer, ByteBuffer responsePacketBuffer, int maxLength, Lookup lookup){
+        localOnly = false;
+        carried = lookup;
+        try {
+            return resolve(queryPacketBuffer, responsePacketBuffer, maxLength);
+        } finally {
+            carried = null;
         }
+    }
 
-        // Forward each domain query and collect responses
-        String resolver = Config.getConfig("resolver");
-        if(resolver != null){
-            DNSForwarder forwarder = new DNSForwarder(resolver);
-            for (byte[] domain : domains) {
-                byte[] singleQuery = createSingleDomainQuery(domain);
-                byte[] resolverResponse = forwarder.forwardQuery(singleQuery);
-                copyAnswerSection(ByteBuffer.wrap(resolverResponse), responsePacketBuffer);
+    /*
+     * Like resolveQuery(), but never waits: returns NEEDS_UPSTREAM (leaving the response buffer in
+     * an undefined state) if some question is neither in the zones nor in the cache. Listener
+     * threads use it to answer everything they can themselves and hand only the rest to workers,
+     * together with pendingLookup().
+     */
+    int resolveLocally(ByteBuffer queryPacketBuffer, ByteBuffer responsePacketBuffer, int maxLength){
+        localOnly = true;
+        pending = null;
+        try {
+            return resolve(queryPacketBuffer, responsePacketBuffer, maxLength);
+        } finally {
+            localOnly = false;
+        }
+    }
+
+    // The cache lookups of the last resolveLocally() that returned NEEDS_UPSTREAM, for resolveQuery() on a worker
+    Lookup pendingLookup() {
+        Lookup lookup = pending;
+        pending = null;
+        return lookup;
+    }
+
+    private int resolve(ByteBuffer queryPacketBuffer, ByteBuffer responsePacketBuffer, int maxLength){
+        long parseStart = System.nanoTime();
+        DNSSettings latest = settings.get();
+        if (latest != current) {
+            // After a reload: a resolver (with its scratch state) for the new zones, allocated once per reload
+            if (current == null || latest.zones != current.zones) {
+                zoneResolver = latest.zones == null ? null : new DNSZoneResolver(latest.zones, compressor);
+            }
+            forwarder = latest.upstream;
+            current = latest;
+        }
+        responsePacketBuffer.clear();
+        compressor.reset();
+
+        int questionCountFromHeader = parseAndCreateResponseHeader(responsePacketBuffer, queryPacketBuffer); //get response header
+
+        if (questionNameOffsets.length < questionCountFromHeader) {
+            questionNameOffsets = new int[questionCountFromHeader];
+        }
+        int queryOffset = DNSHeader.SIZE; //questions start right after the header
+        try {
+            for(int i=0; i<questionCountFromHeader; i++){
+                questionNameOffsets[i] = responsePacketBuffer.position();
+                queryOffset = copyQuestionSection(queryPacketBuffer, queryOffset, responsePacketBuffer);
+            }
+        } catch (IllegalArgumentException e) {
+            // A name past the RFC 1035 limits, an unknown label type or a pointer loop
+            return writeErrorResponse(queryPacketBuffer, responsePacketBuffer, RCODE_FORMERR);
+        }
+        int questionSectionEnd = responsePacketBuffer.position();
+
+        // EDNS(0): look for the client's OPT record after the question section
+        int optOffset = findOpt(queryPacketBuffer, queryOffset);
+        if (optOffset == MULTIPLE_OPT) { // RFC 6891 section 6.1.1
+            clearSections(responsePacketBuffer, questionSectionEnd);
+            DNSHeader.setRC(responsePacketBuffer, RCODE_FORMERR);
+            return questionSectionEnd;
+        }
+        boolean edns = optOffset != NO_OPT;
+        int limit = maxLength;
+        if (edns) {
+            if (EDNS.version(queryPacketBuffer, optOffset) != 0) { // we only speak version 0
+                clearSections(responsePacketBuffer, questionSectionEnd);
+                writeOpt(responsePacketBuffer, EDNS.EXTENDED_RCODE_BADVERS);
+                return responsePacketBuffer.position();
             }
-        }else{
-            for (byte[] domain : domains) {
-                resolveAndWriteAnswerSection(responsePacketBuffer, domain);
-              }
+            limit = Math.max(maxLength, Math.min(EDNS.udpSize(queryPacketBuffer, optOffset), ednsUdpSize));
         }
+        int optSpace = edns ? EDNS.OPT_RECORD_SIZE : 0;
+        if (carried == null) DNSMetrics.stage(DNSMetrics.STAGE_PARSE, System.nanoTime() - parseStart); // else counted by the listener
 
-        byte[] response = new byte[responsePacketBuffer.position()];
+        try {
+            if(zoneResolver != null && (forwarder == null || allAuthoritative(responsePacketBuffer, questionCountFromHeader))){
+                long zoneStart = System.nanoTime();
+                zoneResolver.resolve(responsePacketBuffer, questionNameOffsets, questionCountFromHeader);
+                DNSMetrics.stage(DNSMetrics.STAGE_ZONE, System.nanoTime() - zoneStart);
+            }else if(forwarder != null){
+                if (!resolveWithForwarder(queryPacketBuffer, responsePacketBuffer, questionCountFromHeader)) return NEEDS_UPSTREAM;
+            }else{
+                for (int i = 0; i < questionCountFromHeader; i++) {
+                    DEFAULT_ANSWER.writeToBuffer(responsePacketBuffer, questionNameOffsets[i], compressor);
+                }
+            }
+        } catch (DNSResponseFullException e) {
+            // Only the record writers' explicit room checks land here; other failures are not a size problem
+            return truncate(responsePacketBuffer, questionSectionEnd, edns);
+        }
+
+        if (responsePacketBuffer.position() + optSpace > limit) {
+            return truncate(responsePacketBuffer, questionSectionEnd, edns);
+        }
+        if (edns) writeOpt(responsePacketBuffer, 0);
+        return responsePacketBuffer.position();
+    }
+
+    private boolean allAuthoritative(ByteBuffer responsePacketBuffer, int questionCount) {
+        for (int i = 0; i < questionCount; i++) {
+            if (!zoneResolver.isAuthoritative(responsePacketBuffer, questionNameOffsets[i])) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Returns the offset of the OPT record's TYPE field in the query, NO_OPT if there is none or
+     * MULTIPLE_OPT if there is more than one. offset is where the question section ended; queries
+     * normally have no answer/authority records, but any are skipped.
+     */
+    private int findOpt(ByteBuffer queryPacket, int offset) {
+        int skipped = DNSHeader.getAnswerCount(queryPacket) + DNSHeader.getAuthorityCount(queryPacket);
+        int records = skipped + DNSHeader.getAdditionalCount(queryPacket);
+        int opt = NO_OPT;
+        for (int i = 0; i < records; i++) {
+            int typeOffset = DNSName.skip(queryPacket, offset);
+            if (i >= skipped && queryPacket.getShort(typeOffset) == EDNS.TYPE_OPT) {
+                if (opt != NO_OPT) return MULTIPLE_OPT;
+                opt = typeOffset;
+            }
+            offset = typeOffset + 10 + (queryPacket.getShort(typeOffset + 8) & 0xFFFF); // TYPE..RDLENGTH + RDATA
+        }
+        return opt;
+    }
+
+    private void writeOpt(ByteBuffer responsePacketBuffer, int extendedRcode) {
+        EDNS.writeOpt(responsePacketBuffer, ednsUdpSize, extendedRcode);
+        DNSHeader.setAdditionalCount(responsePacketBuffer, DNSHeader.getAdditionalCount(responsePacketBuffer) + 1);
+    }
+
+    // Drops everything after the question section
+    private void clearSections(ByteBuffer responsePacketBuffer, int questionSectionEnd) {
+        responsePacketBuffer.position(questionSectionEnd);
+        DNSHeader.setAnswerCount(responsePacketBuffer, 0);
+        DNSHeader.setAuthorityCount(responsePacketBuffer, 0);
+        DNSHeader.setAdditionalCount(responsePacketBuffer, 0);
+    }
+
+    /*
+     * Cuts the response back to header + question section and sets TC (RFC 2181 section 9: a
+     * truncated response should not carry partial RRsets, so all records are dropped). The OPT
+     * record is kept so the client still learns our payload size (RFC 6891 section 7).
+     */
+    private int truncate(ByteBuffer responsePacketBuffer, int questionSectionEnd, boolean edns) {
+        clearSections(responsePacketBuffer, questionSectionEnd);
+        DNSHeader.setTC(responsePacketBuffer, true);
+        DNSMetrics.truncated();
+        if (edns) writeOpt(responsePacketBuffer, 0);
+        return responsePacketBuffer.position();
+    }
+
+    // Forward each question (unless it is cached) and collect responses
+    // Returns false, having written nothing, if localOnly is set and the upstream is needed
+    private boolean resolveWithForwarder(ByteBuffer queryPacketBuffer, ByteBuffer responsePacketBuffer, int questionCount) {
+        short originalId = DNSHeader.getId(queryPacketBuffer);
+        Function<DNSQuestion, CompletableFuture<byte[]>> upstreamQuery =
+                miss -> forwarder.forwardQueryAsync(createSingleDomainQuery(originalId, miss));
+        Lookup lookup = carried != null ? carried : lookUp(responsePacketBuffer, questionCount, upstreamQuery);
+        if (localOnly && lookup.misses > 0) {
+            pending = lookup;
+            return false;
+        }
+        List<DNSQuestion> questions = lookup.questions;
+        DNSCache.Entry[] cached = lookup.cached;
+        DNSCache.Entry[] stale = lookup.stale;
 
         /*
-        * The flip() method in ByteBuffer is crucial for switching from write mode to read mode. It does 3 things:
-        *   Sets the limit to current position
-        *   Sets position back to 0
-        *   Discards the mark if one was set
-        *
-        * Before flip():
-        *   position: points to last written byte
-        *   limit: buffer capacity (512)
-        *
-        * After flip():
-        *   position: 0 (start)
-        *   limit: previous position
-        *
-        * This prepares the buffer for reading all the data we just wrote. Without flip(),
-        * we'd try reading from the end of our written data rather than the beginning.
-        */
-        responsePacketBuffer.flip();
-        for (int i = 0; i < response.length; i++) {
-            response[i] = responsePacketBuffer.get();
+         * All cache misses are sent upstream at once and awaited together, so a packet with N
+         * questions costs the slowest upstream round trip instead of the sum of N of them.
+         * Duplicate questions in one packet, and misses other requests are already waiting for,
+         * share a single upstream query (DNSCache.load); that query also fills the cache.
+         *
+         * Expired entries still within the stale window are refreshed the same way, but if the
+         * upstream fails or is slower than DNSCache.STALE_ANSWER_MS the stale entry is served
+         * (RFC 8767). Only those questions give up early: misses without a stale entry get the
+         * upstream's full timeout, also when they share a packet with stale ones.
+         */
+        Map<DNSQuestion, CompletableFuture<DNSCache.Entry>> upstream = new HashMap<>();
+        List<CompletableFuture<DNSCache.Entry>> staleBacked = new ArrayList<>();
+        List<CompletableFuture<DNSCache.Entry>> unbacked = new ArrayList<>();
+        for (int i = 0; i < questions.size(); i++) {
+            if (cached[i] != null) continue;
+            CompletableFuture<DNSCache.Entry> future = upstream.computeIfAbsent(questions.get(i), q -> cache.load(q, upstreamQuery));
+            (stale[i] != null ? staleBacked : unbacked).add(future);
+        }
+        long waitStart = System.nanoTime();
+        int timeoutMs = forwarder.getTimeoutMs();
+        awaitAll(staleBacked, Math.min(DNSCache.STALE_ANSWER_MS, timeoutMs));
+        awaitAll(unbacked, timeoutMs - (int) ((System.nanoTime() - waitStart) / 1_000_000));
+
+        long encodeStart = System.nanoTime();
+        List<DNSCache.Entry> entries = new ArrayList<>();
+        int answerCount = 0;
+        int rcode = 0;
+        for (int i = 0; i < questions.size(); i++) {
+            DNSQuestion question = questions.get(i);
+            DNSCache.Entry entry = cached[i];
+            if (entry == null && stale[i] != null && !isUsable(upstream.get(question))) {
+                entry = stale[i];
+                entry.staleRefreshFailed(encodeStart);
+            } else if (entry == null) {
+                entry = upstreamEntry(upstream.get(question));
+                if (entry == null) {
+                    rcode = RCODE_SERVFAIL;
+                    continue;
+                }
+            }
+            if (entry == stale[i]) DNSMetrics.staleAnswer();
+            for (DNSRecord answer : entry.getAnswers()) {
+                answer.writeToBuffer(responsePacketBuffer, ttl(entry, answer, encodeStart), compressor);
+                answerCount++;
+            }
+            entries.add(entry);
+            if (entry.getRcode() != 0) rcode = entry.getRcode();
+        }
+
+        // Authority section (the SOA of negative answers) goes after all the answers
+        int authorityCount = 0;
+        for (DNSCache.Entry entry : entries) {
+            for (DNSRecord record : entry.getAuthority()) {
+                record.writeToBuffer(responsePacketBuffer, ttl(entry, record, encodeStart), compressor);
+                authorityCount++;
+            }
         }
-        return response;
+
+        /*
+         * The response header was written before we knew how many records the resolver would return,
+         * so ANCOUNT, NSCOUNT and RCODE are patched in place once the sections are written.
+         */
+        DNSHeader.setAnswerCount(responsePacketBuffer, answerCount);
+        DNSHeader.setAuthorityCount(responsePacketBuffer, authorityCount);
+        if (rcode != 0) DNSHeader.setRC(responsePacketBuffer, rcode);
+        DNSMetrics.stage(DNSMetrics.STAGE_ENCODE, System.nanoTime() - encodeStart);
+        return true;
     }
 
-    private void resolveAndWriteAnswerSection(ByteBuffer responsePacketBuffer,byte[] domain) {
-        DNSAnswer answer = new DNSAnswer(domain, "8.8.8.8");
-        answer.writeToBuffer(responsePacketBuffer);
-  }
+    /*
+     * Looks every question up in the cache, once per request: this is what counts it in the cache's
+     * frequency sketch and in the metrics. Popular entries close to expiry are refreshed in the
+     * background (prefetch).
+     */
+    private Lookup lookUp(ByteBuffer responsePacketBuffer, int questionCount,
+                          Function<DNSQuestion, CompletableFuture<byte[]>> upstreamQuery) {
+        Lookup lookup = new Lookup(questionCount);
+        // The questions were echoed into the response, read them back from there
+        ByteBuffer echoedQuestions = responsePacketBuffer.duplicate();
+        for (int i = 0; i < questionCount; i++) {
+            echoedQuestions.position(questionNameOffsets[i]);
+            DNSQuestion question = DNSQuestion.readFrom(echoedQuestions);
+            lookup.questions.add(question);
+            long cacheStart = System.nanoTime();
+            DNSCache.Entry entry = cache.lookup(question, cacheStart);
+            DNSMetrics.stage(DNSMetrics.STAGE_CACHE, System.nanoTime() - cacheStart);
+            if (entry != null && entry.isExpired(cacheStart)) {
+                lookup.stale[i] = entry;
+                if (entry.isStaleRetryPending(cacheStart)) lookup.cached[i] = entry; // upstream failed recently, don't wait for it again
+            } else if (entry != null) {
+                lookup.cached[i] = entry;
+                if (cache.shouldPrefetch(question, entry, cacheStart)) {
+                    DNSMetrics.prefetch();
+                    cache.load(question, upstreamQuery);
+                }
+            }
+            DNSMetrics.cacheLookup(lookup.cached[i] != null && lookup.cached[i] != lookup.stale[i]);
+            if (lookup.cached[i] == null) lookup.misses++;
+        }
+        return lookup;
+    }
+
+    // A stale entry is replaced only by a successful, non-SERVFAIL reply that is already there
+    private static boolean isUsable(CompletableFuture<DNSCache.Entry> future) {
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) return false;
+        return future.join().getRcode() != RCODE_SERVFAIL;
+    }
+
+    // Records served stale go out with a short fixed TTL (RFC 8767 section 4)
+    private static int ttl(DNSCache.Entry entry, DNSRecord record, long nowNanos) {
+        return entry.isExpired(nowNanos) ? DNSCache.STALE_TTL : entry.remainingTtl(record);
+    }
+
+    /*
+     * Waits until every upstream query has completed or timeoutMs has passed, whichever comes
+     * first. Queries still running at encoding time are answered from a stale entry or with SERVFAIL.
+     */
+    private void awaitAll(Collection<CompletableFuture<DNSCache.Entry>> futures, int timeoutMs) {
+        if (futures.isEmpty()) return;
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // some queries failed or are late, upstreamEntry() sorts them out one by one
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * The parsed reply of a finished upstream query.
+     * Returns null when the resolver could not be reached, did not answer in time or sent something
+     * unparsable, which the caller turns into SERVFAIL.
+     */
+    private DNSCache.Entry upstreamEntry(CompletableFuture<DNSCache.Entry> future) {
+        if (!future.isDone()) {
+            DNSQueryLog.warn("Error in forwarding: no usable response from resolver");
+            return null;
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+            if (cause instanceof IOException || cause instanceof TimeoutException) {
+                DNSQueryLog.warn("Error in forwarding: no usable response from resolver");
+            } else {
+                DNSQueryLog.warn("Malformed resolver response: " + cause);
+            }
+            return null;
+        }
+    }
 
     /*
-     * This method constructs a DNS query packet for a single domain. 
-     * It creates a new ByteBuffer, adds the question section for the specified domain. It sets the query type to "A" (for address records) 
-     * and the query class to "IN" (for Internet). The method returns the constructed query packet as a byte array, 
+     * This method constructs a DNS query packet for a single question.
+     * It creates a new ByteBuffer, adds the question section with the question's own query type and
+     * query class (e.g. "A" and "IN") and an OPT record. The method returns the constructed query packet as a byte array,
      * which will be forwarded to the resolver.
      */
-    private byte[] createSingleDomainQuery(byte[] domain) {
+    private byte[] createSingleDomainQuery(short originalId, DNSQuestion question) {
         ByteBuffer queryBuffer = ByteBuffer.allocate(512);
 
         // Write header with original ID and single question
-        short originalId = queryPacketBuffer.getShort(0);
-        DNSHeader header = new DNSHeader();
-        header.setId(originalId);
-        header.setQuestionCount((short) 1);
-        header.setRD(true);  // Set recursion desired
-        queryBuffer.put(header.toBytes());
+        DNSHeader.writeEmpty(queryBuffer, originalId);
+        DNSHeader.setQR(queryBuffer, false); // this is a query, not a response
+        DNSHeader.setQuestionCount(queryBuffer, 1);
+        DNSHeader.setRD(queryBuffer, true);  // Set recursion desired
 
         // Write question section
-        queryBuffer.put(domain);
-        queryBuffer.putShort((short) 1);  // QTYPE = A
-        queryBuffer.putShort((short) 1);  // QCLASS = IN
+        question.writeToBuffer(queryBuffer);
+
+        // Advertise EDNS so the resolver can send large answers over UDP instead of truncating them
+        EDNS.writeOpt(queryBuffer, ednsUdpSize, 0);
+        DNSHeader.setAdditionalCount(queryBuffer, 1);
 
         byte[] result = new byte[queryBuffer.position()];
         queryBuffer.flip();
@@ -98,52 +441,17 @@ public class DNSQueryHandler {
         return result;
     }
 
-    private void copyAnswerSection(ByteBuffer source, ByteBuffer dest) {
-        // Copy NAME field (2 bytes for compression pointer)
-        dest.putShort(source.getShort());
-        
-        // Copy TYPE (2 bytes)
-        dest.putShort(source.getShort());
-        
-        // Copy CLASS (2 bytes)
-        dest.putShort(source.getShort());
-        
-        // Copy TTL (4 bytes)
-        dest.putInt(source.getInt());
-        
-        // Copy RDLENGTH (2 bytes)
-        short rdLength = source.getShort();
-        dest.putShort(rdLength);
-        
-        // Copy RDATA (IPv4 address - 4 bytes)
-        byte[] rdata = new byte[rdLength];
-        source.get(rdata);
-        dest.put(rdata);
-    }
-
-    private byte[] copyQuestionSection(ByteBuffer queryPacket, ByteBuffer responsePacket){
-        /*
-         * ByteArrayOutputStream is a useful class for dynamically building a byte array. (dynamic byte[])
-         *   write() - adds a byte to the internal buffer
-         *   toByteArray() - converts all written bytes into a byte array (byte[])
-         * Think of ByteArrayOutputStream like a growable bucket for bytes - you can keep adding bytes and then get them all at once when needed.
-         */
-        ByteArrayOutputStream domainBytesArray = new ByteArrayOutputStream();
-
-        /*
-        * call position(n) - it moves the pointer to that position (it moves the pointer to that absolute position in the buffer, regardless of where it was before)
-        * call get() - it reads one byte and advances the pointer
-        * call getShort() - it reads two bytes and advances the pointer
-        */
-        queryPacket.position(12); //skip header
-
+    /*
+     * Copies the question at queryOffset into the response and returns the offset of the next question.
+     */
+    private int copyQuestionSection(ByteBuffer queryPacket, int queryOffset, ByteBuffer responsePacket){
         /*
-        * why if(labelLength == 0) break ?
+        * How does a name end?
         * For example, "codecrafters.io" is encoded as:
         * \x0ccodecrafters (length 12 + "codecrafters")
         * \x02io (length 2 + "io")
         * \x00 (null terminator)
-        * The loop continues reading labels until it hits the null byte (labelLength == 0),
+        * DNSName.copy() keeps reading labels until it hits the null byte (labelLength == 0),
         * which signals the end of the domain name.
         * This is the standard DNS protocol way of encoding domain names as described in RFC 1035.
         */
@@ -173,7 +481,7 @@ public class DNSQueryHandler {
         * 1. Read bytes normally until 0xC0 encountered
         * 2. When found 0xC0, next byte is offset
         * 3. Jump to offset position and read name
-        * 4. Return to original position after compressed part
+        * 4. Continue after the compressed part in the original stream
         * 
         * This saves space by reusing common domain parts
         * Max offset is 16383 (14 bits)
@@ -211,62 +519,94 @@ public class DNSQueryHandler {
         */
 
 
-        while(true){
-            byte labelLength = queryPacket.get(); //length of domain/label
-            responsePacket.put(labelLength);
-            domainBytesArray.write(labelLength);
-
-            // Handle compression pointer
-            if ((labelLength & 0xC0) == 0xC0) {
-                byte offsetByte = queryPacket.get();
-                int offset = ((labelLength & 0x3F) << 8) | (offsetByte & 0xFF);
+        /*
+        * The compressor decompresses the name at queryOffset (following the query's compression pointers
+        * with absolute reads) and writes it into the response compressed against the response's own
+        * names, e.g. Q2 above comes out as 0x03api + a pointer to Q1 in the response. It returns where
+        * the name ended in the query.
+        */
+        int offset = compressor.copyName(queryPacket, queryOffset, responsePacket);
+        responsePacket.putShort(queryPacket.getShort(offset));     //QTYPE (2 Bytes)
+        responsePacket.putShort(queryPacket.getShort(offset + 2)); //QCLASS (2 Bytes)
+        return offset + 4;
 
-                // Save position and jump to offset
-                queryPacket.position(offset);
-                continue;
-            }
+    }
 
-            if (labelLength == 0) break;
+    /*
+     * Writes a minimal error response (SERVFAIL, REFUSED, ...) straight from the raw query, without
+     * going through the normal pipeline. Used when the server is saturated or the query could not be
+     * handled. The question is echoed back when there is exactly one and it parses, otherwise the
+     * response carries the header only. Returns the response length, or -1 if the packet is too short
+     * to even hold a header.
+     */
+    static int writeErrorResponse(ByteBuffer queryPacket, ByteBuffer responsePacket, int rcode) {
+        int length = queryPacket.limit();
+        if (length < DNSHeader.SIZE) return -1;
 
-            // Instead of creating a byte array
-            for (int i = 0; i < labelLength; i++) {
-                byte labelByte = queryPacket.get();
-                responsePacket.put(labelByte);
-                domainBytesArray.write(labelByte);
+        int end = DNSHeader.SIZE;
+        if (DNSHeader.getQuestionCount(queryPacket) == 1) {
+            try {
+                queryPacket.position(DNSHeader.SIZE);
+                DNSName.skip(queryPacket);
+                end = queryPacket.position() + 4; // QTYPE + QCLASS
+                if (end > length) end = DNSHeader.SIZE;
+            } catch (RuntimeException e) {
+                end = DNSHeader.SIZE;
             }
-
         }
 
-        responsePacket.putShort(queryPacket.getShort()); //QTYPE (2 Bytes)
-        responsePacket.putShort(queryPacket.getShort()); //QCLASS (2 Bytes)
-
-        return domainBytesArray.toByteArray(); //dynamic byte[] stream => byte[]
-
+        responsePacket.clear();
+        for (int i = 0; i < end; i++) {
+            responsePacket.put(queryPacket.get(i));
+        }
+        DNSHeader.setQR(responsePacket, true);
+        DNSHeader.setTC(responsePacket, false);
+        responsePacket.put(2, (byte) (responsePacket.get(2) & 0b11111011)); // AA=0
+        responsePacket.put(3, (byte) 0);                                      // RA=0, Z=0
+        DNSHeader.setRC(responsePacket, rcode);
+        DNSHeader.setQuestionCount(responsePacket, end > DNSHeader.SIZE ? 1 : 0);
+        DNSHeader.setAnswerCount(responsePacket, 0);
+        DNSHeader.setAuthorityCount(responsePacket, 0);
+        DNSHeader.setAdditionalCount(responsePacket, 0);
+        return end;
     }
 
-    private short parseAndCreateResponseHeader(ByteBuffer responsePacket, ByteBuffer queryPacket){
+    private int parseAndCreateResponseHeader(ByteBuffer responsePacket, ByteBuffer queryPacket){
         // Get id
-        short id = queryPacket.getShort();
+        short id = DNSHeader.getId(queryPacket);
         // Get flags from query
-        byte queryFlags1 = queryPacket.get();
-        int oc = (queryFlags1 >> 3) & 0b00001111;
-        boolean rd = (queryFlags1 & 0b00000001) != 0;
+        int oc = DNSHeader.getOC(queryPacket);
+        boolean rd = DNSHeader.isRD(queryPacket);
         // Get RC (last 4 bits of flags2)
         int rc = (oc == 0) ? 0 : 4;  // 0 for standard query, 4 for not implemented
-        queryPacket.get(); // skip flags2
         // Read question count (2 Bytes)
-        short questionCount = queryPacket.getShort();
-
-        //Create response packet's header
-        DNSHeader header = new DNSHeader();
-        header.setId(id);
-        header.setOC(oc);
-        header.setRD(rd);
-        header.setRC(rc);
-        header.setQuestionCount(questionCount);
-        header.setAnswerCount(questionCount);
-
-        responsePacket.put(header.toBytes());
+        int questionCount = DNSHeader.getQuestionCount(queryPacket);
+
+        //Create response packet's header in place
+        DNSHeader.writeEmpty(responsePacket, id);
+        DNSHeader.setOC(responsePacket, oc);
+        DNSHeader.setRD(responsePacket, rd);
+        DNSHeader.setRC(responsePacket, rc);
+        DNSHeader.setQuestionCount(responsePacket, questionCount);
+        DNSHeader.setAnswerCount(responsePacket, questionCount);
         return questionCount;
     }
-}
\ No newline at end of file
+
+    /*
+     * The cache lookups of one request's questions. When a listener's resolveLocally() has to wait
+     * for the upstream, they travel with the request to the worker, which starts the upstream
+     * queries without looking the questions up a second time.
+     */
+    static final class Lookup {
+        final List<DNSQuestion> questions;
+        final DNSCache.Entry[] cached; // answerable now: live, or stale after a recent failed refresh
+        final DNSCache.Entry[] stale;  // expired but within the stale window
+        int misses;                    // questions without a cached[] entry
+
+        Lookup(int questionCount) {
+            questions = new ArrayList<>(questionCount);
+            cached = new DNSCache.Entry[questionCount];
+            stale = new DNSCache.Entry[questionCount];
+        }
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Query and event log, written by a background thread.
+ *
+ * Threads that log never format or write anything: they claim a slot in a fixed-size ring buffer
+ * (a lock-free multi-producer / single-consumer queue, one CAS per entry), copy a few primitive
+ * fields into it and move on. The writer thread drains the ring, formats the entries and writes
+ * them to stdout or a file, and parks while the ring is empty; the first entry published after that
+ * wakes it. When the ring is full new entries are dropped and counted, so a slow disk can never
+ * stall query handling; the writer reports how many were lost.
+ *
+ * When a reload replaces the log, the old writer closes its ring by swapping the tail for CLOSED_TAIL:
+ * every slot claimed before the swap is written before the writer stops, and a producer that still
+ * held the old log and claims after it logs into the current one instead.
+ *
+ * Levels: OFF < ERROR < WARN < INFO < DEBUG
+ *   ERROR/WARN  events (send failures, upstream errors, shedding)
+ *   INFO        one entry per query: client, qname, qtype, rcode, answers, size, latency
+ *   DEBUG       like INFO plus a hex dump of the query and response (up to 512 bytes each)
+ * Query entries can be sampled (--log-sample N keeps 1 in N), events are never sampled.
+ * With queries disabled the cost per request is one volatile read and a comparison.
+ *
+ * Formats:
+ *   text    logfmt style lines:
+ *           2024-01-01T00:00:00.123Z INFO query proto=udp client=127.0.0.1:5353 id=4660 qname=example.com.
+ *           qtype=1 rcode=0 answers=1 size=49 latency_us=85
+ *   binary  a stream of frames, each a 2 byte length followed by the body (all big endian):
+ *           kind (1 = query)  time millis (8), proto (1), address length (1) + address, port (2),
+ *                             id (2), qname length (1) + wire-format qname, qtype (2), rcode (1),
+ *                             answers (2), size (2), latency micros (4)
+ *           kind (2 = event)  time millis (8), level (1), UTF-8 message length (2) + message
+ */
+public class DNSQueryLog {
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+    public static final int PROTO_UDP = 0;
+    public static final int PROTO_TCP = 1;
+
+    private static final int DEFAULT_CAPACITY = 8192; // power of two
+    private static final int MAX_DUMP = 512;
+    private static final byte KIND_QUERY = 1;
+    private static final byte KIND_EVENT = 2;
+    private static final long CLOSED_TAIL = Long.MIN_VALUE; // tail of a replaced log, claims fail with CLOSED
+    private static final long DROPPED = -1;
+    private static final long CLOSED = -2;
+    private static final int SHUTDOWN_FLUSH_MS = 1000;
+
+    private static volatile DNSQueryLog current = new DNSQueryLog(Level.WARN, 1, false, System.out, DEFAULT_CAPACITY).start();
+
+    // The writer is a daemon thread: give it a moment to write what was logged before the JVM exits
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> current.awaitFlushed(SHUTDOWN_FLUSH_MS), "dns-log-shutdown"));
+    }
+
+    private final Level level;
+    private final int sampleRate;
+    private final boolean binary;
+    private final OutputStream out;
+
+    // Ring buffer: slot i is free for the producer of sequence s when sequences[i] == s, and
+    // readable by the writer when sequences[i] == s + 1 (D. Vyukov's bounded MPMC queue, one consumer)
+    private final Entry[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // writer thread only
+    private volatile long flushed; // head as of the writer's last flush
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+    private volatile boolean sleeping; // the writer is parked, or about to park, on an empty ring
+    private final Thread writer;
+
+    private DNSQueryLog(Level level, int sampleRate, boolean binary, OutputStream out, int capacity) {
+        this.level = level;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.binary = binary;
+        this.out = out;
+        this.entries = new Entry[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry(level == Level.DEBUG);
+            sequences.set(i, i);
+        }
+        this.writer = new Thread(this::drainLoop, "dns-log-writer");
+        writer.setDaemon(true);
+    }
+
+    /*
+     * Opens a log without making it the current one, file == null logs to stdout. DNSReloader opens
+     * the new log before it commits a reload: install() then replaces the current log with it, or
+     * discard() closes it unused if something else in the reload failed.
+     */
+    public static DNSQueryLog open(Level level, int sampleRate, String file, boolean binary) throws IOException {
+        OutputStream out = file == null ? System.out : new FileOutputStream(file, true);
+        return new DNSQueryLog(level, sampleRate, binary, out, DEFAULT_CAPACITY);
+    }
+
+    // Makes an opened log the current one; the previous log's writer drains what it has and stops
+    public static void install(DNSQueryLog log) {
+        DNSQueryLog previous = current;
+        current = log.start();
+        previous.closed = true;
+        LockSupport.unpark(previous.writer);
+    }
+
+    public void discard() {
+        if (out != System.out) closeQuietly(out);
+    }
+
+    private DNSQueryLog start() {
+        writer.start();
+        return this;
+    }
+
+    public static Level parseLevel(String text) {
+        return Level.valueOf(text.toUpperCase());
+    }
+
+    // Cheap check for call sites that would otherwise do work just to build the entry
+    public static boolean queriesEnabled() {
+        return current.level.compareTo(Level.INFO) >= 0;
+    }
+
+    public static void error(String message) {
+        current.event(Level.ERROR, message);
+    }
+
+    public static void warn(String message) {
+        current.event(Level.WARN, message);
+    }
+
+    public static void info(String message) {
+        current.event(Level.INFO, message);
+    }
+
+    /*
+     * Logs an answered query. The qname/qtype come from the response's first question (the query may
+     * be malformed), rcode and answer count from its header. startNanos is System.nanoTime() taken
+     * when the query was received.
+     */
+    public static void query(int proto, InetAddress client, int port, ByteBuffer query, int queryLength,
+                             ByteBuffer response, int responseLength, long startNanos) {
+        DNSQueryLog log = current;
+        if (log.level.compareTo(Level.INFO) < 0) return;
+        if (log.sampleRate > 1 && ThreadLocalRandom.current().nextInt(log.sampleRate) != 0) return;
+        long latencyNanos = System.nanoTime() - startNanos;
+
+        long sequence = log.claim();
+        if (sequence == CLOSED) {
+            query(proto, client, port, query, queryLength, response, responseLength, startNanos);
+            return;
+        }
+        if (sequence < 0) return;
+        Entry entry = log.entries[(int) sequence & log.mask];
+        entry.kind = KIND_QUERY;
+        entry.timeMillis = System.currentTimeMillis();
+        entry.proto = proto;
+        entry.client = client;
+        entry.port = port;
+        entry.latencyNanos = latencyNanos;
+        entry.responseLength = responseLength;
+        entry.id = 0;
+        entry.rcode = 0;
+        entry.answers = 0;
+        entry.qnameLength = 0;
+        entry.qtype = 0;
+        if (responseLength >= DNSHeader.SIZE) {
+            entry.id = DNSHeader.getId(response);
+            entry.rcode = DNSHeader.getRC(response);
+            entry.answers = DNSHeader.getAnswerCount(response);
+            if (DNSHeader.getQuestionCount(response) > 0) {
+                try {
+                    entry.qnameBuffer.clear();
+                    int typeOffset = DNSName.copy(response, DNSHeader.SIZE, entry.qnameBuffer);
+                    entry.qnameLength = entry.qnameBuffer.position();
+                    entry.qtype = response.getShort(typeOffset) & 0xFFFF;
+                } catch (RuntimeException e) {
+                    entry.qnameLength = 0;
+                }
+            }
+        }
+        if (entry.queryDump != null) {
+            entry.queryDumpLength = copyDump(query, queryLength, entry.queryDump);
+            entry.responseDumpLength = copyDump(response, responseLength, entry.responseDump);
+        }
+        log.publish(sequence);
+    }
+
+    private static int copyDump(ByteBuffer source, int length, byte[] dump) {
+        int n = Math.max(0, Math.min(length, dump.length));
+        for (int i = 0; i < n; i++) dump[i] = source.get(i);
+        return n;
+    }
+
+    private void event(Level eventLevel, String message) {
+        if (level.compareTo(eventLevel) < 0) return;
+        long sequence = claim();
+        if (sequence == CLOSED) {
+            current.event(eventLevel, message);
+            return;
+        }
+        if (sequence < 0) return;
+        Entry entry = entries[(int) sequence & mask];
+        entry.kind = KIND_EVENT;
+        entry.timeMillis = System.currentTimeMillis();
+        entry.level = eventLevel;
+        entry.message = message;
+        publish(sequence);
+    }
+
+    // Claims the next slot, or returns DROPPED (and counts a drop) if the ring is full, CLOSED if the log was replaced
+    private long claim() {
+        while (true) {
+            long position = tail.get();
+            if (position == CLOSED_TAIL) return CLOSED;
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) return position;
+            } else if (sequence < position) {
+                dropped.increment();
+                return DROPPED;
+            }
+            // another producer took this position, try the next one
+        }
+    }
+
+    private void publish(long position) {
+        sequences.set((int) position & mask, position + 1);
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    // Waits until the entries claimed so far are written, at most timeoutMillis
+    private void awaitFlushed(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (flushed < target && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private static void closeQuietly(OutputStream output) {
+        try {
+            output.close();
+        } catch (IOException e) {
+            // the log is gone either way
+        }
+    }
+
+    private void drainLoop() {
+        long end = -1; // the tail when the ring was closed
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        StringBuilder line = new StringBuilder(256);
+        ByteBuffer frame = ByteBuffer.allocate(2 + 4096);
+        while (true) {
+            boolean wroteAny = false;
+            try {
+                long droppedNow = dropped.sumThenReset();
+                if (droppedNow > 0 && !binary) {
+                    output.write(("... " + droppedNow + " log entries dropped, the log writer fell behind\n").getBytes(StandardCharsets.UTF_8));
+                }
+                while (sequences.get((int) head & mask) == head + 1) {
+                    Entry entry = entries[(int) head & mask];
+                    if (binary) writeFrame(entry, frame, output);
+                    else writeLine(entry, line, output);
+                    entry.client = null;
+                    entry.message = null;
+                    sequences.set((int) head & mask, head + entries.length); // slot is free again
+                    head++;
+                    wroteAny = true;
+                }
+                if (wroteAny || droppedNow > 0) output.flush();
+                flushed = head;
+            } catch (IOException e) {
+                // nowhere left to report it; keep draining so producers never see a full ring
+            }
+            if (wroteAny) continue;
+            if (closed) {
+                if (end < 0) {
+                    end = tail.getAndSet(CLOSED_TAIL); // no claims after this one
+                } else if (head == end && dropped.sum() == 0) {
+                    if (out != System.out) closeQuietly(output); // replaced by a reload with another file
+                    return;
+                } else {
+                    Thread.yield(); // a slot claimed before the swap is still being filled, or drops to report
+                }
+                continue;
+            }
+            // Sleeping is set before the last look at the ring and read by publish() after its write,
+            // so either the writer sees the entry or the producer sees the flag and unparks it
+            sleeping = true;
+            if (sequences.get((int) head & mask) != head + 1 && !closed) LockSupport.park(this);
+            sleeping = false;
+        }
+    }
+
+    private void writeLine(Entry entry, StringBuilder line, DataOutputStream output) throws IOException {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(entry.timeMillis)).append(' ');
+        if (entry.kind == KIND_EVENT) {
+            line.append(entry.level).append(' ').append(entry.message);
+        } else {
+            line.append(entry.queryDump != null ? "DEBUG" : "INFO").append(" query")
+                    .append(" proto=").append(entry.proto == PROTO_TCP ? "tcp" : "udp")
+                    .append(" client=").append(entry.client == null ? "-" : entry.client.getHostAddress()).append(':').append(entry.port)
+                    .append(" id=").append(entry.id & 0xFFFF)
+                    .append(" qname=").append(entry.qnameLength > 0 ? DNSName.toString(entry.qname) : "-")
+                    .append(" qtype=").append(entry.qtype)
+                    .append(" rcode=").append(entry.rcode)
+                    .append(" answers=").append(entry.answers)
+                    .append(" size=").append(entry.responseLength)
+                    .append(" latency_us=").append(entry.latencyNanos / 1000);
+            if (entry.queryDump != null) {
+                line.append(" query_hex=").append(Utils.hex(entry.queryDump, entry.queryDumpLength));
+                line.append(" response_hex=").append(Utils.hex(entry.responseDump, entry.responseDumpLength));
+            }
+        }
+        line.append('\n');
+        output.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeFrame(Entry entry, ByteBuffer frame, DataOutputStream output) throws IOException {
+        frame.clear();
+        frame.putShort((short) 0); // length, patched below
+        frame.put(entry.kind);
+        frame.putLong(entry.timeMillis);
+        if (entry.kind == KIND_EVENT) {
+            byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(message.length, frame.remaining() - 3);
+            frame.put((byte) entry.level.ordinal());
+            frame.putShort((short) length);
+            frame.put(message, 0, length);
+        } else {
+            byte[] address = entry.client == null ? new byte[0] : entry.client.getAddress();
+            frame.put((byte) entry.proto);
+            frame.put((byte) address.length).put(address);
+            frame.putShort((short) entry.port);
+            frame.putShort(entry.id);
+            frame.put((byte) entry.qnameLength).put(entry.qname, 0, entry.qnameLength);
+            frame.putShort((short) entry.qtype);
+            frame.put((byte) entry.rcode);
+            frame.putShort((short) entry.answers);
+            frame.putShort((short) entry.responseLength);
+            frame.putInt((int) Math.min(entry.latencyNanos / 1000, Integer.MAX_VALUE));
+        }
+        frame.putShort(0, (short) (frame.position() - 2));
+        output.write(frame.array(), 0, frame.position());
+    }
+
+    // One ring slot, reused forever; only the writer thread reads it between publish and release
+    private static final class Entry {
+        byte kind;
+        long timeMillis;
+        // events
+        Level level;
+        String message;
+        // queries
+        int proto;
+        InetAddress client;
+        int port;
+        short id;
+        final byte[] qname = new byte[256];
+        final ByteBuffer qnameBuffer = ByteBuffer.wrap(qname);
+        int qnameLength;
+        int qtype;
+        int rcode;
+        int answers;
+        int responseLength;
+        long latencyNanos;
+        final byte[] queryDump;
+        final byte[] responseDump;
+        int queryDumpLength;
+        int responseDumpLength;
+
+        Entry(boolean dumps) {
+            this.queryDump = dumps ? new byte[MAX_DUMP] : null;
+            this.responseDump = dumps ? new byte[MAX_DUMP] : null;
+        }
+    }
+}
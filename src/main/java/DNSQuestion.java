@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+
+/*
+ * One entry of the question section: QNAME + QTYPE + QCLASS.
+ *
+ * The name is kept in uncompressed wire format. equals()/hashCode() ignore the case of
+ * the name, so a DNSQuestion can be used directly as a cache key for (qname, qtype, qclass).
+ */
+public class DNSQuestion {
+    private final byte[] name;
+    private final short type;
+    private final short class_;
+    private final int hash;
+
+    public DNSQuestion(byte[] name, short type, short class_) {
+        this.name = name;
+        this.type = type;
+        this.class_ = class_;
+        this.hash = 31 * (31 * DNSName.hashIgnoreCase(name) + type) + class_;
+    }
+
+    // Reads a question at the buffer's current position and advances past it
+    public static DNSQuestion readFrom(ByteBuffer message) {
+        byte[] name = DNSName.read(message);
+        short type = message.getShort();
+        short class_ = message.getShort();
+        return new DNSQuestion(name, type, class_);
+    }
+
+    public void writeToBuffer(ByteBuffer buffer) {
+        buffer.put(name);
+        buffer.putShort(type);
+        buffer.putShort(class_);
+    }
+
+    public byte[] getName() {
+        return name;
+    }
+
+    public short getType() {
+        return type;
+    }
+
+    public short getClass_() {
+        return class_;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DNSQuestion)) return false;
+        DNSQuestion other = (DNSQuestion) o;
+        return type == other.type && class_ == other.class_ && DNSName.equalsIgnoreCase(name, other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return DNSName.toString(name) + " type=" + (type & 0xFFFF) + " class=" + (class_ & 0xFFFF);
+    }
+}
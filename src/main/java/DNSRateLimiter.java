@@ -0,0 +1,137 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Rate limits for UDP clients, so that one noisy client, or a victim whose address is spoofed in a
+ * reflection attack, cannot take all of the server's capacity.
+ *
+ *   queries     every client network (/24 for IPv4, /56 for IPv6) gets queryRate queries per
+ *               second with bursts of queryBurst; packets over the limit are dropped right after
+ *               the receive, before they are parsed, looked up or forwarded
+ *   responses   response rate limiting (RRL): identical responses to one client network (same
+ *               name, type and response code) are limited to responseRate per second. Over the
+ *               limit, one in `slip` responses is replaced by an empty truncated one (TC set), so a
+ *               real client behind the address can retry over TCP, and the others are dropped.
+ *               NXDOMAIN and error responses count per client network whatever the name, so
+ *               random-subdomain floods share one budget
+ *
+ * Both limits live in fixed-size hashed tables of AtomicLongArray slots, so memory does not grow
+ * with the number of clients and nothing is locked or allocated per packet. A slot holds a 16 bit
+ * tag of the key's hash and the key's "theoretical arrival time" in microseconds (GCRA, the token
+ * bucket expressed as a single timestamp): a packet is allowed if that time is less than the burst
+ * ahead of now, and then moves it forward by one interval with a compareAndSet. Two keys sharing a
+ * slot evict each other, which only ever lets more traffic through, never less. The hash is seeded
+ * per process so clients cannot aim for each other's slots.
+ *
+ * TCP is not limited here: its source addresses cannot be spoofed and DNSTcpServer caps the number
+ * of connections.
+ */
+public class DNSRateLimiter {
+    static final int ALLOW = 0;
+    static final int DROP = 1;
+    static final int SLIP = 2;
+
+    private static final int TABLE_SIZE = 1 << 16; // slots per table, 512 KB
+    private static final int IPV4_PREFIX_BYTES = 3; // /24
+    private static final int IPV6_PREFIX_BYTES = 7; // /56
+    private static final int RCODE_NOERROR = 0;
+    private static final long TIME_MASK = (1L << 48) - 1;
+
+    private static final int SEED = new SecureRandom().nextInt();
+
+    private final Table queries;   // null when queries are not limited
+    private final Table responses; // null without RRL
+    private final int slip;
+
+    // Rates per second, 0 to disable that limit; slip 0 never sends truncated responses, 1 always does
+    public DNSRateLimiter(int queryRate, int queryBurst, int responseRate, int slip) {
+        this.queries = queryRate > 0 ? new Table(queryRate, Math.max(1, queryBurst)) : null;
+        this.responses = responseRate > 0 ? new Table(responseRate, responseRate) : null;
+        this.slip = slip;
+    }
+
+    // False if the client network is over its query rate and the packet should be dropped unanswered
+    public boolean allowQuery(InetAddress client) {
+        return queries == null || queries.allow(prefixHash(client));
+    }
+
+    /*
+     * ALLOW, DROP or SLIP for a response about to be sent to client. The response's first question
+     * is read from its uncompressed position right after the header.
+     */
+    public int checkResponse(InetAddress client, ByteBuffer response, int length) {
+        if (responses == null || length < DNSHeader.SIZE) return ALLOW;
+        int rcode = DNSHeader.getRC(response);
+        int hash = prefixHash(client) * 31 + rcode;
+        if (rcode == RCODE_NOERROR && DNSHeader.getQuestionCount(response) > 0) {
+            int offset = DNSHeader.SIZE;
+            for (int labelLength; (labelLength = response.get(offset) & 0xFF) != 0 && (labelLength & 0xC0) == 0; offset++) {
+                for (int end = offset + labelLength; offset < end; ) hash = hash * 31 + DNSName.toLower(response.get(++offset));
+            }
+            hash = hash * 31 + response.getShort(offset + 1); // QTYPE
+        }
+        if (responses.allow(mix(hash))) return ALLOW;
+        return slip > 0 && ThreadLocalRandom.current().nextInt(slip) == 0 ? SLIP : DROP;
+    }
+
+    /*
+     * Cuts a response down to header + question section with TC set and no records, telling the
+     * client to retry over TCP. Returns the new length.
+     */
+    static int slip(ByteBuffer response) {
+        int offset = DNSHeader.SIZE;
+        for (int i = DNSHeader.getQuestionCount(response); i > 0; i--) {
+            offset = DNSName.skip(response, offset) + 4; // QTYPE + QCLASS
+        }
+        DNSHeader.setTC(response, true);
+        DNSHeader.setAnswerCount(response, 0);
+        DNSHeader.setAuthorityCount(response, 0);
+        DNSHeader.setAdditionalCount(response, 0);
+        return offset;
+    }
+
+    private static int prefixHash(InetAddress client) {
+        byte[] address = client.getAddress();
+        int prefixBytes = address.length == 4 ? IPV4_PREFIX_BYTES : IPV6_PREFIX_BYTES;
+        int hash = SEED;
+        for (int i = 0; i < prefixBytes; i++) hash = hash * 31 + address[i];
+        return mix(hash);
+    }
+
+    // murmur3's finalizer, so the low bits (the slot) depend on every bit of the key
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Table {
+        private final AtomicLongArray slots = new AtomicLongArray(TABLE_SIZE);
+        private final long intervalMicros;   // between two packets at the sustained rate
+        private final long toleranceMicros;  // how far ahead of now a key may run: the burst
+        private final long epoch = System.nanoTime();
+
+        Table(int ratePerSecond, int burst) {
+            this.intervalMicros = Math.max(1, 1_000_000L / ratePerSecond);
+            this.toleranceMicros = intervalMicros * (burst - 1);
+        }
+
+        boolean allow(int hash) {
+            int index = hash & (TABLE_SIZE - 1);
+            long tag = (long) (hash >>> 16) << 48;
+            long now = (System.nanoTime() - epoch) / 1000;
+            while (true) {
+                long slot = slots.get(index);
+                long arrival = (slot & ~TIME_MASK) == tag ? slot & TIME_MASK : 0; // another key's slot counts as empty
+                if (arrival < now) arrival = now;
+                if (arrival - now > toleranceMicros) return false;
+                if (slots.compareAndSet(index, slot, tag | (arrival + intervalMicros))) return true;
+            }
+        }
+    }
+}
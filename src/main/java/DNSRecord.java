@@ -0,0 +1,155 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * A generic resource record (answer / authority / additional section entry).
+ *
+ * Records read from an upstream response are fully decompressed: compression pointers only
+ * make sense inside the packet they came from, so the owner name and any names embedded in
+ * RDATA (NS, CNAME, PTR, MX, SOA) are stored in plain wire format. That makes a record safe
+ * to cache and to copy into any other response.
+ *
+ * Everything after the owner name (TYPE, CLASS, TTL, RDLENGTH, RDATA) is encoded once when the
+ * record is created, so writing it into a response is one bulk put plus patching the TTL.
+ */
+public class DNSRecord {
+    public static final short TYPE_A = 1;
+    public static final short TYPE_NS = 2;
+    public static final short TYPE_CNAME = 5;
+    public static final short TYPE_SOA = 6;
+    public static final short TYPE_PTR = 12;
+    public static final short TYPE_MX = 15;
+    public static final short TYPE_TXT = 16;
+    public static final short TYPE_AAAA = 28;
+    public static final short TYPE_ANY = 255; // QTYPE only
+
+    private final byte[] name;
+    private final short type;
+    private final short class_;
+    private final int ttl;
+    private final byte[] encoded; // TYPE + CLASS + TTL + RDLENGTH + RDATA, ready to put()
+
+    public DNSRecord(byte[] name, short type, short class_, int ttl, byte[] rdata) {
+        this.name = name;
+        this.type = type;
+        this.class_ = class_;
+        this.ttl = ttl;
+        this.encoded = ByteBuffer.allocate(10 + rdata.length)
+                .putShort(type)
+                .putShort(class_)
+                .putInt(ttl)
+                .putShort((short) rdata.length)
+                .put(rdata)
+                .array();
+    }
+
+    // Reads a record at the buffer's current position and advances past it
+    public static DNSRecord readFrom(ByteBuffer message) {
+        byte[] name = DNSName.read(message);
+        short type = message.getShort();
+        short class_ = message.getShort();
+        int ttl = message.getInt();
+        int rdLength = message.getShort() & 0xFFFF;
+        int rdataEnd = message.position() + rdLength;
+
+        byte[] rdata = readRdata(message, type, rdLength);
+        message.position(rdataEnd);
+        return new DNSRecord(name, type, class_, ttl, rdata);
+    }
+
+    private static byte[] readRdata(ByteBuffer message, short type, int rdLength) {
+        switch (type) {
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                return DNSName.read(message);
+            case TYPE_MX: {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(message.get()); // PREFERENCE (2 bytes)
+                out.write(message.get());
+                out.writeBytes(DNSName.read(message));
+                return out.toByteArray();
+            }
+            case TYPE_SOA: {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.writeBytes(DNSName.read(message)); // MNAME
+                out.writeBytes(DNSName.read(message)); // RNAME
+                byte[] counters = new byte[20];        // SERIAL, REFRESH, RETRY, EXPIRE, MINIMUM
+                message.get(counters);
+                out.writeBytes(counters);
+                return out.toByteArray();
+            }
+            default: {
+                byte[] rdata = new byte[rdLength];
+                message.get(rdata);
+                return rdata;
+            }
+        }
+    }
+
+    /*
+     * Writes the record with its owner name compressed against the names already in the message.
+     * Names inside RDATA stay uncompressed (allowed by RFC 1035, and RFC 3597 section 4 only lets
+     * servers compress them), which keeps the rest of the record a single pre-encoded put().
+     * The TTL is supplied by the caller so cached TTLs can be counted down. Throws
+     * DNSResponseFullException, having written nothing, if the record may not fit.
+     */
+    public void writeToBuffer(ByteBuffer buffer, int ttl, NameCompressor compressor) {
+        DNSResponseFullException.ensureRemaining(buffer, size());
+        compressor.writeName(buffer, name, 0);
+        int start = buffer.position();
+        buffer.put(encoded);
+        buffer.putInt(start + 4, ttl);
+        int target = targetOffset(type);
+        if (target >= 0) compressor.addName(buffer, start + 10 + target); // e.g. the owner after a CNAME
+    }
+
+    // Where the domain name that later records may point at starts in the RDATA of a type, or -1
+    static int targetOffset(short type) {
+        switch (type) {
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                return 0;
+            case TYPE_MX:
+                return 2; // after PREFERENCE
+            default:
+                return -1;
+        }
+    }
+
+    // Size of this record on the wire when written uncompressed
+    public int size() {
+        return name.length + encoded.length;
+    }
+
+    /*
+     * RFC 2308 section 5: the TTL of a negative answer is the minimum of the SOA record's
+     * own TTL and its MINIMUM field (the last 4 bytes of the SOA RDATA).
+     */
+    public int negativeTtl() {
+        int minimum = ByteBuffer.wrap(encoded, encoded.length - 4, 4).getInt();
+        return Math.min(ttl, minimum);
+    }
+
+    public byte[] getName() {
+        return name;
+    }
+
+    public short getType() {
+        return type;
+    }
+
+    public short getClass_() {
+        return class_;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public byte[] getRdata() {
+        return Arrays.copyOfRange(encoded, 10, encoded.length);
+    }
+}
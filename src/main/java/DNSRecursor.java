@@ -0,0 +1,722 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Iterative resolution starting from the root (--recursive), instead of relaying every cache miss
+ * to a third-party resolver.
+ *
+ * A question starts at the closest enclosing zone whose delegation is cached (the root, from the
+ * root hints, if nothing else) and is sent without RD to one of that zone's nameservers. The reply
+ * is one of:
+ *   - an answer or a negative answer (NXDOMAIN, or NODATA with the zone's SOA): done, unless the
+ *     answer is a CNAME whose target the reply does not cover, which is then resolved the same way
+ *   - a referral: NS records for a zone closer to the name in the authority section and their
+ *     addresses (glue) in the additional section. The delegation is cached for the NS TTL, the
+ *     glue for its own TTL, and the question goes one level down
+ *   - anything else (timeout, SERVFAIL, REFUSED, truncation, a lame or upward referral): the next
+ *     nameserver of the zone is tried
+ * Nameservers without glue have their addresses resolved first, the same way.
+ *
+ * Only records inside the zone of the server that sent them are believed (the bailiwick rule):
+ * glue for nameservers outside that zone is ignored and their addresses are looked up separately,
+ * and answers are followed only as far as the zone reaches. One compromised or careless server can
+ * therefore not plant records for names it is not responsible for.
+ *
+ * Every nameserver address keeps a smoothed RTT (RFC 6298, as DNSForwarder's upstreams), shared by
+ * all zones it serves. Within a zone the server with the lowest SRTT is asked first; servers not
+ * measured in the last SERVER_TTL_MS count as 0, so each one is tried (again) now and then, and a
+ * timeout or a useless reply doubles the estimate so dead servers sink to the end of the list.
+ *
+ * The transport is DNSForwarder's: a few non-blocking IPv4 channels on kernel-randomized ports, a
+ * random ID per query and one reader thread; a reply is only accepted from the address the query
+ * went to, with our ID and our question. Queries carry an EDNS OPT record so referrals with lots of
+ * glue fit in one datagram. There is no TCP fallback: a truncated reply counts as a failure of that
+ * server.
+ *
+ * The response handed back is built from the records collected on the way (the CNAME chain and the
+ * final answer, or the SOA of a negative answer), in the shape DNSCache.parseResponse() expects.
+ */
+public class DNSRecursor implements DNSUpstream {
+    static final int DEFAULT_TIMEOUT_MS = 5000;
+    // a.root-servers.net .. m.root-servers.net
+    static final String ROOT_HINTS = "198.41.0.4,170.247.170.2,192.33.4.12,199.7.91.13,192.203.230.10,192.5.5.241,"
+            + "192.112.36.4,198.97.190.53,192.36.148.17,192.58.128.30,193.0.14.129,199.7.83.42,202.12.27.33";
+
+    private static final int MAX_RESPONSE_SIZE = 65535;
+    private static final int MAX_QUERIES = 48;         // per client question: referrals, retries and nameserver lookups together
+    private static final int MAX_DEPTH = 4;            // nesting of nameserver address lookups
+    private static final int MAX_REFERRALS = 16;
+    private static final int MAX_CNAMES = 8;
+    private static final int INITIAL_RTO_MS = 400;     // for servers without a measurement
+    private static final int MIN_RTO_MS = 50;
+    private static final long MAX_PENALTY_MICROS = TimeUnit.SECONDS.toMicros(10);
+    private static final long SERVER_TTL_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final int MAX_DELEGATION_TTL = 172800;
+    private static final int MAX_CACHED = 100_000;     // delegations, address sets and servers, each
+    private static final short CLASS_IN = 1;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final byte[] ROOT = {0};
+
+    private final int timeoutMs;
+    private final int port;
+    private final Delegation root;
+    // zone name -> its nameservers, keyed by (zone, NS, IN)
+    private final ConcurrentHashMap<DNSQuestion, Delegation> delegations = new ConcurrentHashMap<>();
+    // nameserver name -> its IPv4 addresses, keyed by (name, A, IN)
+    private final ConcurrentHashMap<DNSQuestion, Addresses> addresses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, NameServer> servers = new ConcurrentHashMap<>();
+
+    private final DatagramChannel[] channels;
+    private final Selector selector;
+    private final ConcurrentHashMap<Long, ServerQuery> pending = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    /*
+     * rootHints is a comma separated list of root server addresses (host[:port]), port the one all
+     * other nameservers are asked on (53, anything else is for test setups with local servers).
+     */
+    public DNSRecursor(String rootHints, int port, int socketCount, int timeoutMs) throws IOException {
+        this.timeoutMs = timeoutMs;
+        this.port = port;
+
+        String[] hints = rootHints.split(",");
+        InetSocketAddress[] rootServers = new InetSocketAddress[hints.length];
+        for (int i = 0; i < hints.length; i++) {
+            String hint = hints[i].trim();
+            int separator = hint.lastIndexOf(':');
+            rootServers[i] = separator < 0 ? new InetSocketAddress(hint, port)
+                    : new InetSocketAddress(hint.substring(0, separator), Integer.parseInt(hint.substring(separator + 1)));
+        }
+        this.root = new Delegation(ROOT, new byte[0][], rootServers, Long.MAX_VALUE);
+
+        this.selector = Selector.open();
+        this.channels = new DatagramChannel[socketCount];
+        for (int i = 0; i < socketCount; i++) {
+            DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.bind(null); // ephemeral port picked (and randomized) by the kernel
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, i);
+            channels[i] = channel;
+        }
+
+        Thread reader = new Thread(this::readLoop, "dns-recursor-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> forwardQueryAsync(byte[] query) {
+        ByteBuffer queryPacket = ByteBuffer.wrap(query);
+        short id = DNSHeader.getId(queryPacket);
+        boolean rd = DNSHeader.isRD(queryPacket);
+        queryPacket.position(DNSHeader.SIZE);
+        DNSQuestion question = DNSQuestion.readFrom(queryPacket);
+
+        Resolution resolution = new Resolution();
+        Lookup lookup = new Lookup(question, resolution, 0);
+        lookup.start(question.getName());
+        lookup.result.whenComplete((result, error) -> {
+            if (error != null) resolution.done.completeExceptionally(error);
+            else resolution.done.complete(encode(id, rd, question, result));
+        });
+        resolution.done.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        return resolution.done;
+    }
+
+    // State shared by a client question and the lookups it needed on the way
+    private static final class Resolution {
+        private final CompletableFuture<byte[]> done = new CompletableFuture<>();
+        private final AtomicInteger queriesLeft = new AtomicInteger(MAX_QUERIES);
+    }
+
+    // The outcome of a lookup: the CNAME chain and answer, or the SOA of a negative answer
+    private static final class Result {
+        private final int rcode;
+        private final List<DNSRecord> answers;
+        private final List<DNSRecord> authority;
+
+        Result(int rcode, List<DNSRecord> answers, List<DNSRecord> authority) {
+            this.rcode = rcode;
+            this.answers = answers;
+            this.authority = authority;
+        }
+    }
+
+    /*
+     * Resolution of one question, walking down from the closest cached delegation. Only one query
+     * of a lookup is in flight at a time and every step runs in the callback of the previous one,
+     * so its fields need no locking.
+     */
+    private final class Lookup {
+        private final DNSQuestion question;
+        private final Resolution resolution;
+        private final int depth;
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+        private final List<DNSRecord> chain = new ArrayList<>(); // CNAMEs followed so far
+        private final List<InetSocketAddress> tried = new ArrayList<>(); // servers of the current zone already asked
+        private final List<byte[]> lookedUp = new ArrayList<>(); // nameserver names whose addresses were resolved
+        private byte[] name;
+        private Delegation zone;
+        private int referrals;
+
+        Lookup(DNSQuestion question, Resolution resolution, int depth) {
+            this.question = question;
+            this.resolution = resolution;
+            this.depth = depth;
+        }
+
+        void start(byte[] name) {
+            this.name = name;
+            descend(closestDelegation(name));
+        }
+
+        private void descend(Delegation zone) {
+            this.zone = zone;
+            tried.clear();
+            lookedUp.clear();
+            next();
+        }
+
+        // Asks the best untried server of the zone, resolving nameserver addresses first if none is known
+        private void next() {
+            if (resolution.done.isDone()) {
+                result.cancel(false);
+                return;
+            }
+            InetSocketAddress server = pickServer(zone, tried);
+            if (server == null) {
+                byte[] nameServer = depth < MAX_DEPTH ? unresolvedNameServer() : null;
+                if (nameServer == null) {
+                    fail("no usable nameserver for " + DNSName.toString(zone.zone));
+                    return;
+                }
+                lookedUp.add(nameServer);
+                resolveAddresses(nameServer, resolution, depth + 1).whenComplete((ignored, error) -> next());
+                return;
+            }
+            if (resolution.queriesLeft.decrementAndGet() < 0) {
+                fail("too many queries");
+                return;
+            }
+            tried.add(server);
+            send(server, new DNSQuestion(name, question.getType(), question.getClass_())).whenComplete((reply, error) -> {
+                if (error != null) {
+                    next();
+                    return;
+                }
+                try {
+                    onReply(server, reply);
+                } catch (RuntimeException e) { // malformed reply
+                    server(server).onFailure();
+                    next();
+                }
+            });
+        }
+
+        private void onReply(InetSocketAddress server, byte[] reply) {
+            ByteBuffer message = ByteBuffer.wrap(reply);
+            int rcode = DNSHeader.getRC(message);
+            if (DNSHeader.isTC(message) || (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)) {
+                server(server).onFailure();
+                next();
+                return;
+            }
+            Message parsed = new Message(message);
+
+            // Follow the answer as far as this zone's server is believable
+            byte[] current = name;
+            for (int i = chain.size(); i <= MAX_CNAMES && isSubdomain(current, zone.zone); i++) {
+                List<DNSRecord> answers = parsed.answers(current, question.getType());
+                if (!answers.isEmpty()) {
+                    chain.addAll(answers);
+                    result.complete(new Result(RCODE_NOERROR, chain, Collections.emptyList()));
+                    return;
+                }
+                DNSRecord cname = parsed.cname(current);
+                if (cname == null) break;
+                chain.add(cname);
+                current = cname.getRdata();
+            }
+
+            if (current == name) {
+                Delegation referral = referral(parsed);
+                if (referral != null) {
+                    DNSMetrics.referral();
+                    if (++referrals > MAX_REFERRALS) fail("too many referrals");
+                    else descend(referral);
+                    return;
+                }
+            }
+
+            DNSRecord soa = parsed.soa(current, zone.zone);
+            if (isSubdomain(current, zone.zone) && (rcode == RCODE_NXDOMAIN || soa != null || (parsed.authoritative && current == name))) {
+                List<DNSRecord> authority = soa == null ? Collections.emptyList() : Collections.singletonList(soa);
+                result.complete(new Result(rcode, chain, authority));
+            } else if (current != name) {
+                // a CNAME into another zone, or one this server left unresolved
+                if (chain.size() > MAX_CNAMES) fail("CNAME chain too long");
+                else start(current);
+            } else {
+                server(server).onFailure(); // lame: neither an answer nor a referral
+                next();
+            }
+        }
+
+        /*
+         * NS records in the authority section for a zone strictly below the current one and
+         * containing the name. Glue within the current zone is cached along with it.
+         */
+        private Delegation referral(Message parsed) {
+            byte[] child = null;
+            List<byte[]> nameServers = new ArrayList<>();
+            int ttl = MAX_DELEGATION_TTL;
+            for (DNSRecord record : parsed.authority) {
+                if (record.getType() != DNSRecord.TYPE_NS) continue;
+                byte[] owner = record.getName();
+                if (child == null) {
+                    // must be a child of the current zone on the way to the name (not an upward referral)
+                    if (DNSName.equalsIgnoreCase(owner, zone.zone) || !isSubdomain(owner, zone.zone) || !isSubdomain(name, owner)) continue;
+                    child = owner;
+                } else if (!DNSName.equalsIgnoreCase(owner, child)) {
+                    continue;
+                }
+                nameServers.add(record.getRdata());
+                ttl = Math.min(ttl, record.getTtl());
+            }
+            if (child == null) return null;
+
+            for (byte[] nameServer : nameServers) {
+                if (!isSubdomain(nameServer, zone.zone)) continue; // out of bailiwick, resolved when needed
+                List<InetSocketAddress> glue = new ArrayList<>();
+                int glueTtl = MAX_DELEGATION_TTL;
+                for (DNSRecord record : parsed.additional) {
+                    if (record.getType() == DNSRecord.TYPE_A && DNSName.equalsIgnoreCase(record.getName(), nameServer)) {
+                        glue.add(address(record.getRdata()));
+                        glueTtl = Math.min(glueTtl, record.getTtl());
+                    }
+                }
+                if (!glue.isEmpty()) cacheAddresses(nameServer, glue.toArray(new InetSocketAddress[0]), glueTtl);
+            }
+
+            Delegation delegation = new Delegation(child, nameServers.toArray(new byte[0][]), null, expiry(ttl));
+            if (ttl > 0) put(delegations, new DNSQuestion(child, DNSRecord.TYPE_NS, CLASS_IN), delegation);
+            return delegation;
+        }
+
+        // A nameserver of the zone without known addresses that this lookup has not resolved yet
+        private byte[] unresolvedNameServer() {
+            for (byte[] nameServer : zone.nameServers) {
+                if (cachedAddresses(nameServer) != null || contains(lookedUp, nameServer)) continue;
+                return nameServer;
+            }
+            return null;
+        }
+
+        private void fail(String reason) {
+            result.completeExceptionally(new IOException("Recursion for " + question + " failed: " + reason));
+        }
+    }
+
+    // Resolves a nameserver's A records into the address cache; the future completes either way
+    private CompletableFuture<Void> resolveAddresses(byte[] nameServer, Resolution resolution, int depth) {
+        Lookup lookup = new Lookup(new DNSQuestion(nameServer, DNSRecord.TYPE_A, CLASS_IN), resolution, depth);
+        lookup.start(nameServer);
+        return lookup.result.handle((result, error) -> {
+            if (result == null) return null;
+            List<InetSocketAddress> found = new ArrayList<>();
+            int ttl = MAX_DELEGATION_TTL;
+            for (DNSRecord record : result.answers) {
+                if (record.getType() != DNSRecord.TYPE_A) continue;
+                found.add(address(record.getRdata()));
+                ttl = Math.min(ttl, record.getTtl());
+            }
+            if (!found.isEmpty()) cacheAddresses(nameServer, found.toArray(new InetSocketAddress[0]), Math.max(1, ttl));
+            return null;
+        });
+    }
+
+    // The deepest cached delegation that contains the name, the root hints if there is none
+    private Delegation closestDelegation(byte[] name) {
+        long now = System.nanoTime();
+        for (int offset = 0; name[offset] != 0; offset += (name[offset] & 0xFF) + 1) {
+            byte[] zone = offset == 0 ? name : Arrays.copyOfRange(name, offset, name.length);
+            Delegation delegation = delegations.get(new DNSQuestion(zone, DNSRecord.TYPE_NS, CLASS_IN));
+            if (delegation != null && now - delegation.expiresNanos < 0) return delegation;
+        }
+        return root;
+    }
+
+    /*
+     * The untried address of the zone's nameservers with the lowest SRTT, ties broken at random so
+     * unmeasured servers share the first queries.
+     */
+    private InetSocketAddress pickServer(Delegation zone, List<InetSocketAddress> tried) {
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        if (zone.hints != null) Collections.addAll(candidates, zone.hints);
+        for (byte[] nameServer : zone.nameServers) {
+            InetSocketAddress[] known = cachedAddresses(nameServer);
+            if (known != null) Collections.addAll(candidates, known);
+        }
+        if (candidates.isEmpty()) return null;
+
+        int start = ThreadLocalRandom.current().nextInt(candidates.size());
+        InetSocketAddress best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            InetSocketAddress candidate = candidates.get((start + i) % candidates.size());
+            if (tried.contains(candidate)) continue;
+            NameServer stats = servers.get(candidate);
+            long score = stats == null ? 0 : stats.score();
+            if (score < bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private InetSocketAddress[] cachedAddresses(byte[] nameServer) {
+        Addresses cached = addresses.get(new DNSQuestion(nameServer, DNSRecord.TYPE_A, CLASS_IN));
+        return cached != null && System.nanoTime() - cached.expiresNanos < 0 ? cached.addresses : null;
+    }
+
+    private void cacheAddresses(byte[] nameServer, InetSocketAddress[] found, int ttl) {
+        put(addresses, new DNSQuestion(nameServer, DNSRecord.TYPE_A, CLASS_IN), new Addresses(found, expiry(ttl)));
+    }
+
+    private NameServer server(InetSocketAddress address) {
+        NameServer server = servers.get(address);
+        if (server != null) return server;
+        if (servers.size() >= MAX_CACHED) servers.clear(); // RTTs are only hints, start over
+        return servers.computeIfAbsent(address, ignored -> new NameServer());
+    }
+
+    // Bounded insert: once a cache is full its expired entries go, or all of them if that is not enough
+    private static <K, V extends Expiring> void put(ConcurrentHashMap<K, V> cache, K key, V value) {
+        if (cache.size() >= MAX_CACHED) {
+            long now = System.nanoTime();
+            cache.values().removeIf(entry -> now - entry.expiresAt() >= 0);
+            if (cache.size() >= MAX_CACHED) cache.clear();
+        }
+        cache.put(key, value);
+    }
+
+    private static long expiry(int ttlSeconds) {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.min(Math.max(ttlSeconds, 0), MAX_DELEGATION_TTL));
+    }
+
+    private InetSocketAddress address(byte[] rdata) {
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(rdata), port);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Bad A record", e); // wrong RDATA length
+        }
+    }
+
+    // True if name is zone or below it, compared label-aligned and ignoring case
+    static boolean isSubdomain(byte[] name, byte[] zone) {
+        int offset = 0;
+        while (name.length - offset > zone.length) {
+            offset += (name[offset] & 0xFF) + 1;
+        }
+        if (name.length - offset != zone.length) return false;
+        for (int i = 0; i < zone.length; i++) {
+            if (DNSName.toLower(name[offset + i]) != DNSName.toLower(zone[i])) return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(List<byte[]> names, byte[] name) {
+        for (byte[] candidate : names) {
+            if (DNSName.equalsIgnoreCase(candidate, name)) return true;
+        }
+        return false;
+    }
+
+    // The response for the client's question, as if a recursive resolver had sent it
+    private static byte[] encode(short id, boolean rd, DNSQuestion question, Result result) {
+        int size = DNSHeader.SIZE + question.getName().length + 4;
+        for (DNSRecord record : result.answers) size += record.size();
+        for (DNSRecord record : result.authority) size += record.size();
+
+        ByteBuffer response = ByteBuffer.allocate(size);
+        DNSHeader.writeEmpty(response, id);
+        DNSHeader.setRD(response, rd);
+        DNSHeader.setRC(response, result.rcode);
+        DNSHeader.setQuestionCount(response, 1);
+        DNSHeader.setAnswerCount(response, result.answers.size());
+        DNSHeader.setAuthorityCount(response, result.authority.size());
+        question.writeToBuffer(response);
+        NameCompressor compressor = new NameCompressor();
+        for (DNSRecord record : result.answers) record.writeToBuffer(response, record.getTtl(), compressor);
+        for (DNSRecord record : result.authority) record.writeToBuffer(response, record.getTtl(), compressor);
+
+        byte[] bytes = new byte[response.position()];
+        response.flip().get(bytes);
+        return bytes;
+    }
+
+    // Sends one question without RD to a nameserver; the future fails on timeout or a send error
+    private CompletableFuture<byte[]> send(InetSocketAddress address, DNSQuestion question) {
+        NameServer server = server(address);
+        ByteBuffer queryBuffer = ByteBuffer.allocate(DNSHeader.SIZE + question.getName().length + 4 + EDNS.OPT_RECORD_SIZE);
+        int channelIndex = ThreadLocalRandom.current().nextInt(channels.length);
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        long key;
+        short id;
+        ServerQuery pendingQuery;
+        do {
+            id = (short) RANDOM.get().nextInt();
+            key = ((long) channelIndex << 16) | (id & 0xFFFF);
+            queryBuffer.clear();
+            DNSHeader.writeEmpty(queryBuffer, id);
+            DNSHeader.setQR(queryBuffer, false);
+            DNSHeader.setQuestionCount(queryBuffer, 1);
+            question.writeToBuffer(queryBuffer);
+            EDNS.writeOpt(queryBuffer, EDNS.DEFAULT_UDP_SIZE, 0);
+            DNSHeader.setAdditionalCount(queryBuffer, 1);
+            pendingQuery = new ServerQuery(future, queryBuffer.array(), address);
+        } while (pending.putIfAbsent(key, pendingQuery) != null);
+
+        final long pendingKey = key;
+        final ServerQuery registered = pendingQuery;
+        future.whenComplete((reply, error) -> {
+            pending.remove(pendingKey, registered);
+            if (error == null) return; // onResponse() already updated the RTT
+            if (error instanceof TimeoutException) DNSMetrics.upstreamTimeout();
+            else DNSMetrics.upstreamError();
+            server.onFailure();
+        });
+
+        DNSMetrics.upstreamQuery();
+        pendingQuery.sentNanos = System.nanoTime();
+        try {
+            channels[channelIndex].send(queryBuffer.flip(), address);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.orTimeout(server.timeoutMs(), TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+        while (true) {
+            try {
+                selector.select();
+                for (SelectionKey selectionKey : selector.selectedKeys()) {
+                    int channelIndex = (Integer) selectionKey.attachment();
+                    DatagramChannel channel = (DatagramChannel) selectionKey.channel();
+                    // Drain everything that arrived on this channel before going back to select()
+                    while (true) {
+                        buffer.clear();
+                        SocketAddress source;
+                        try {
+                            source = channel.receive(buffer);
+                        } catch (IOException e) {
+                            break; // ICMP errors etc., the query will time out
+                        }
+                        if (source == null) break;
+                        onResponse(channelIndex, source, buffer.array(), buffer.position());
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                return; // close()
+            } catch (IOException e) {
+                DNSQueryLog.error("Recursor reader encountered IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        for (DatagramChannel channel : channels) channel.close();
+    }
+
+    private void onResponse(int channelIndex, SocketAddress source, byte[] data, int length) {
+        if (length < DNSHeader.SIZE) return;
+        short id = (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+        ServerQuery pendingQuery = pending.get(((long) channelIndex << 16) | (id & 0xFFFF));
+        if (pendingQuery == null || !pendingQuery.server.equals(source) || !pendingQuery.matchesQuestion(data, length)) {
+            return; // late, duplicate or forged reply
+        }
+
+        byte[] response = Arrays.copyOf(data, length);
+        long rttNanos = System.nanoTime() - pendingQuery.sentNanos;
+        if (pendingQuery.future.complete(response)) {
+            DNSMetrics.stage(DNSMetrics.STAGE_UPSTREAM, rttNanos);
+            server(pendingQuery.server).onSuccess(rttNanos);
+        }
+    }
+
+    // A pending query that also remembers which server it went to
+    private static final class ServerQuery extends DNSForwarder.PendingQuery {
+        private final InetSocketAddress server;
+
+        ServerQuery(CompletableFuture<byte[]> future, byte[] query, InetSocketAddress server) {
+            super(future, query);
+            this.server = server;
+        }
+    }
+
+    private interface Expiring {
+        long expiresAt();
+    }
+
+    // A zone's nameservers; the root's come with fixed addresses (the hints)
+    private static final class Delegation implements Expiring {
+        private final byte[] zone;
+        private final byte[][] nameServers;
+        private final InetSocketAddress[] hints;
+        private final long expiresNanos;
+
+        Delegation(byte[] zone, byte[][] nameServers, InetSocketAddress[] hints, long expiresNanos) {
+            this.zone = zone;
+            this.nameServers = nameServers;
+            this.hints = hints;
+            this.expiresNanos = expiresNanos;
+        }
+
+        @Override
+        public long expiresAt() {
+            return expiresNanos;
+        }
+    }
+
+    private static final class Addresses implements Expiring {
+        private final InetSocketAddress[] addresses;
+        private final long expiresNanos;
+
+        Addresses(InetSocketAddress[] addresses, long expiresNanos) {
+            this.addresses = addresses;
+            this.expiresNanos = expiresNanos;
+        }
+
+        @Override
+        public long expiresAt() {
+            return expiresNanos;
+        }
+    }
+
+    /*
+     * RTT estimate of one nameserver address. Updated by the reader thread and by the threads
+     * completing failed queries, under the object's lock; selection reads the volatile fields.
+     */
+    private final class NameServer {
+        private volatile long srttMicros; // 0 until the first sample
+        private volatile long rttvarMicros;
+        private volatile long updatedMillis;
+
+        // Lower is better; unmeasured servers, and ones not heard of for a while, score 0
+        long score() {
+            return System.currentTimeMillis() - updatedMillis > SERVER_TTL_MS ? 0 : srttMicros;
+        }
+
+        long timeoutMs() {
+            long srtt = srttMicros;
+            long rto = srtt == 0 ? INITIAL_RTO_MS : (srtt + 4 * rttvarMicros) / 1000;
+            return Math.min(timeoutMs / 3, Math.max(MIN_RTO_MS, rto));
+        }
+
+        synchronized void onSuccess(long rttNanos) {
+            long sample = Math.max(1, rttNanos / 1000);
+            if (srttMicros == 0 || srttMicros >= MAX_PENALTY_MICROS) {
+                srttMicros = sample;
+                rttvarMicros = sample / 2;
+            } else {
+                rttvarMicros = (3 * rttvarMicros + Math.abs(srttMicros - sample)) / 4;
+                srttMicros = (7 * srttMicros + sample) / 8;
+            }
+            updatedMillis = System.currentTimeMillis();
+        }
+
+        // Timeouts and useless replies double the estimate (at least to the initial RTO)
+        synchronized void onFailure() {
+            srttMicros = Math.min(MAX_PENALTY_MICROS, Math.max(srttMicros * 2, INITIAL_RTO_MS * 1000L));
+            updatedMillis = System.currentTimeMillis();
+        }
+    }
+
+    // The sections of a reply, decompressed
+    private static final class Message {
+        private final boolean authoritative;
+        private final List<DNSRecord> answers = new ArrayList<>();
+        private final List<DNSRecord> authority = new ArrayList<>();
+        private final List<DNSRecord> additional = new ArrayList<>();
+
+        Message(ByteBuffer message) {
+            authoritative = DNSHeader.isAA(message);
+            int qdCount = DNSHeader.getQuestionCount(message);
+            int anCount = DNSHeader.getAnswerCount(message);
+            int nsCount = DNSHeader.getAuthorityCount(message);
+            int arCount = DNSHeader.getAdditionalCount(message);
+            message.position(DNSHeader.SIZE);
+            for (int i = 0; i < qdCount; i++) {
+                DNSName.skip(message);
+                message.position(message.position() + 4); // QTYPE + QCLASS
+            }
+            for (int i = 0; i < anCount; i++) answers.add(DNSRecord.readFrom(message));
+            for (int i = 0; i < nsCount; i++) authority.add(DNSRecord.readFrom(message));
+            for (int i = 0; i < arCount; i++) additional.add(DNSRecord.readFrom(message));
+        }
+
+        // Answer records owned by name of the type asked for (any type but CNAME for ANY)
+        List<DNSRecord> answers(byte[] name, short type) {
+            List<DNSRecord> matching = new ArrayList<>();
+            for (DNSRecord record : answers) {
+                if (!DNSName.equalsIgnoreCase(record.getName(), name)) continue;
+                if (record.getType() == type || (type == DNSRecord.TYPE_ANY && record.getType() != DNSRecord.TYPE_CNAME)) {
+                    matching.add(record);
+                }
+            }
+            return matching;
+        }
+
+        DNSRecord cname(byte[] name) {
+            for (DNSRecord record : answers) {
+                if (record.getType() == DNSRecord.TYPE_CNAME && DNSName.equalsIgnoreCase(record.getName(), name)) return record;
+            }
+            return null;
+        }
+
+        // The SOA of a negative answer: for a zone within the server's zone that contains the name
+        DNSRecord soa(byte[] name, byte[] serverZone) {
+            for (DNSRecord record : authority) {
+                if (record.getType() == DNSRecord.TYPE_SOA && isSubdomain(record.getName(), serverZone)
+                        && isSubdomain(name, record.getName())) {
+                    return record;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Applies configuration and zone changes while the server keeps answering.
+ *
+ * A reload is triggered by POST /reload on the metrics port (DNSMetricsServer) or, with --config,
+ * by a change to the config file or one of the zone files it names (checked every
+ * WATCH_INTERVAL_MS). It runs on the reloader's own thread:
+ *   1. Config re-reads the file into a candidate map, without applying it yet
+ *   2. from that map, a new query log is opened if its settings changed, and DNSSettings.load()
+ *      builds the new snapshot: zone files are parsed and indexed, a new upstream or rate limiter is
+ *      created if their settings changed, everything else is carried over
+ *   3. the map, the log and the snapshot are applied together; the snapshot replaces the current
+ *      one with a single set(), requests already in progress finish with the old one, the next ones
+ *      use the new one
+ *   4. the cache's memory cap follows --cache-mb, without dropping what is cached
+ *   5. a replaced upstream is closed once the queries sent through it have had time to finish
+ * Workers and listeners never wait for any of it. If a step up to 2 fails (a zone file with a
+ * syntax error, say), nothing is applied: the current settings, log and snapshot stay in place and
+ * the error is logged and returned.
+ *
+ * Thread counts, sockets, ports, --edns-udp-size and --serve-stale-s are fixed at startup.
+ */
+public class DNSReloader {
+    private static final int WATCH_INTERVAL_MS = 2000;
+    private static final int CLOSE_GRACE_MS = 1000; // on top of the replaced upstream's timeout
+
+    private final DNSCache cache;
+    private final AtomicReference<DNSSettings> settings = new AtomicReference<>();
+    private final ScheduledExecutorService executor;
+
+    // Reloader thread only (the constructor runs before it starts)
+    private String cacheKey;
+    private String logKey;
+    private long watchedModified;
+
+    // Configures the query log and loads the first snapshot from the current Config
+    public DNSReloader(DNSCache cache) throws IOException {
+        this.cache = cache;
+        Map<String, String> config = Config.getAll();
+        this.cacheKey = config.get("cacheMb");
+        this.logKey = logKey(config);
+        DNSQueryLog.install(openLog(config));
+        settings.set(DNSSettings.load(null, config));
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The current snapshot, shared with the worker pool and the listeners
+    public AtomicReference<DNSSettings> settings() {
+        return settings;
+    }
+
+    // Watches the --config file and its zone files, if there is a config file
+    public void start() {
+        if (Config.getFile() == null) return;
+        watchedModified = lastModified();
+        executor.scheduleWithFixedDelay(this::checkFiles, WATCH_INTERVAL_MS, WATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Reloads now on the reloader thread and waits for it. Returns a one-line summary, or throws
+     * with the reason the current settings were kept.
+     */
+    public String reload() throws IOException {
+        try {
+            return executor.submit(this::reloadNow).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(String.valueOf(cause.getMessage()), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reloading");
+        }
+    }
+
+    private String reloadNow() throws IOException {
+        long start = System.nanoTime();
+        DNSSettings previous = settings.get();
+        Map<String, String> config;
+        String nextLogKey;
+        DNSQueryLog log = null; // null when the log settings are unchanged
+        DNSSettings next;
+        try {
+            config = Config.read();
+            nextLogKey = logKey(config);
+            if (!nextLogKey.equals(logKey)) log = openLog(config);
+            next = DNSSettings.load(previous, config);
+        } catch (IOException | RuntimeException e) {
+            if (log != null) log.discard();
+            DNSMetrics.reload(false);
+            DNSQueryLog.error("Reload failed, keeping the current settings: " + e);
+            throw e;
+        }
+        Config.apply(config);
+        if (log != null) {
+            DNSQueryLog.install(log);
+            logKey = nextLogKey;
+        }
+        settings.set(next);
+        watchedModified = lastModified(); // the zone files to watch may have changed too
+
+        String cacheMb = config.get("cacheMb");
+        if (!Objects.equals(cacheMb, cacheKey)) {
+            cache.setMaxBytes(Config.getInt(config, "cacheMb", Main.DEFAULT_CACHE_MB) * 1024L * 1024L);
+            cacheKey = cacheMb;
+        }
+        DNSUpstream replaced = previous.upstream;
+        if (replaced != null && replaced != next.upstream) {
+            executor.schedule(() -> close(replaced), replaced.getTimeoutMs() + CLOSE_GRACE_MS, TimeUnit.MILLISECONDS);
+        }
+        DNSMetrics.reload(true);
+
+        String summary = "Reloaded in " + (System.nanoTime() - start) / 1_000_000 + " ms: zones "
+                + (next.zones == previous.zones ? "unchanged" : "reloaded") + ", upstream "
+                + (next.upstream == previous.upstream ? "unchanged" : "replaced") + ", rate limits "
+                + (next.rateLimiter == previous.rateLimiter ? "unchanged" : "replaced");
+        DNSQueryLog.info(summary);
+        return summary;
+    }
+
+    private void checkFiles() {
+        long modified = lastModified();
+        if (modified == watchedModified) return;
+        watchedModified = modified;
+        try {
+            reloadNow();
+        } catch (IOException | RuntimeException e) {
+            // logged by reloadNow(), tried again on the next change
+        }
+    }
+
+    // Combined modification times of the config file and the zone files, -1 for a missing file
+    private static long lastModified() {
+        long modified = Config.getFile() == null ? 0 : modified(Config.getFile());
+        for (Path file : DNSSettings.zoneFiles(Config.getConfig("zones"))) modified = modified * 31 + modified(file);
+        return modified;
+    }
+
+    private static long modified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Query log: events only by default, --log-level info logs every (sampled) query on a background thread
+    private static DNSQueryLog openLog(Map<String, String> config) throws IOException {
+        String logLevel = config.get("logLevel");
+        return DNSQueryLog.open(logLevel == null ? DNSQueryLog.Level.WARN : DNSQueryLog.parseLevel(logLevel),
+                Config.getInt(config, "logSample", 1), config.get("logFile"), "binary".equalsIgnoreCase(config.get("logFormat")));
+    }
+
+    private static String logKey(Map<String, String> config) {
+        return String.join("|", config.get("logLevel"), config.get("logSample"), config.get("logFile"), config.get("logFormat"));
+    }
+
+    private static void close(DNSUpstream upstream) {
+        try {
+            upstream.close();
+        } catch (IOException e) {
+            DNSQueryLog.warn("Failed to close the replaced upstream: " + e.getMessage());
+        }
+    }
+}
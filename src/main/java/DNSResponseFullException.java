@@ -0,0 +1,24 @@
+import java.nio.ByteBuffer;
+
+/*
+ * Thrown by the record writers (DNSRecord, DNSAnswer, DNSZones) when the next record does not fit
+ * in the response buffer. DNSQueryHandler catches it and truncates the response (TC bit); any other
+ * exception while writing is a bug or a malformed record and is answered with SERVFAIL instead.
+ *
+ * The room needed is checked before anything is written, using the record's uncompressed size,
+ * which is never smaller than what compression actually writes. A single instance without a stack
+ * trace is thrown, so a full response costs no allocation.
+ */
+public final class DNSResponseFullException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private static final DNSResponseFullException INSTANCE = new DNSResponseFullException();
+
+    private DNSResponseFullException() {
+        super("Response buffer full", null, false, false);
+    }
+
+    // Throws unless `bytes` more bytes fit between the buffer's position and its limit
+    static void ensureRemaining(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() < bytes) throw INSTANCE;
+    }
+}
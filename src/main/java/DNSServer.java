@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * UDP server engine: one or more listeners on the same port, each with its own socket and receive
+ * loop thread, handing cache misses to the shared DNSWorkerPool.
+ *
+ * With more than one listener the sockets are opened with SO_REUSEPORT, so the kernel spreads the
+ * incoming packets over their separate receive queues (by a hash of the client address and port)
+ * instead of funnelling every packet through one socket and one thread. Java cannot pin threads to
+ * cores; run about one listener per core and leave the placement to the scheduler.
+ *
+ * A listener owns everything it touches on the hot path: its channel, packet buffers,
+ * DNSQueryHandler and free list of requests. It answers every query that needs no upstream round
+ * trip (zones, cache hits, the synthetic answer) itself, without a handoff to another thread. Only
+ * questions that have to go upstream are copied into a Request and handed to the pool, so a slow
+ * upstream (DNSForwarder can block for seconds) ties up one worker instead of a listener. The
+ * request carries the listener's cache lookups (DNSQueryHandler.Lookup), so the worker does not
+ * look the questions up again: each one counts once in the cache's TinyLFU sketch and the metrics.
+ *
+ * Listeners work in batches: the channel is non-blocking and, each time the selector wakes up, up
+ * to BATCH datagrams are drained from the socket before any of them is processed, then all the
+ * responses are sent back to back. Datagrams dropped by the rate limiter don't count toward the
+ * batch; the drain stops when the socket is empty, the batch is full, or it has spent
+ * MAX_DROP_NANOS dropping, so the admitted queries of a wakeup are not held back by a flood. Under load one wakeup serves many packets, and the loop stays in
+ * the receive path, then the resolve path, then the send path instead of alternating between them.
+ * The packet buffers are direct, so the channel reads and writes them in place instead of going
+ * through its temporary direct buffer. If the socket's send buffer fills up, the listener waits
+ * for it to drain before receiving more.
+ *
+ * With a DNSRateLimiter in the current DNSSettings, queries from client networks over their rate are dropped right after the
+ * receive, and responses over the response rate are dropped or slipped (sent truncated) right
+ * before the send.
+ *
+ * When every worker is busy and the pool's queue is full the packet is shed: the listener answers
+ * it right away with SERVFAIL, which is cheap (no parsing beyond the question) and tells the client
+ * to retry or try another server, instead of letting requests pile up until they time out anyway.
+ *
+ * Responses larger than MAX_UDP_SIZE (or the EDNS payload size the client advertised) are truncated to the header and question with the TC bit set,
+ * telling the client to retry over TCP (DNSTcpServer).
+ *
+ * Nothing is allocated per packet in steady state: every listener has a fixed set of packet slots,
+ * requests (query buffer + client address) are created on demand up to the pool's capacity and then
+ * recycled through their listener's free list, and every worker thread owns its DNSQueryHandler and
+ * response buffer.
+ */
+public class DNSServer {
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int MAX_UDP_SIZE = 512; // RFC 1035 limit for UDP responses without EDNS
+    private static final int BATCH = 32; // admitted datagrams drained from the socket per wakeup
+    private static final long MAX_DROP_NANOS = 1_000_000; // time a wakeup may spend dropping rate-limited datagrams
+
+    private final DNSWorkerPool workers;
+    private final int maxPacketSize; // receive buffer size, the EDNS payload size we advertise
+    private final Listener[] listeners;
+    private final AtomicInteger shedCount = new AtomicInteger();
+
+    public DNSServer(int port, DNSWorkerPool workers) throws IOException {
+        this(port, workers, 1);
+    }
+
+    public DNSServer(int port, DNSWorkerPool workers, int sockets) throws IOException {
+        this.workers = workers;
+        this.maxPacketSize = Math.max(MAX_UDP_SIZE, workers.getEdnsUdpSize());
+        this.listeners = new Listener[sockets];
+        for (int i = 0; i < sockets; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            if (sockets > 1) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            listeners[i] = new Listener(channel);
+        }
+    }
+
+    // Receive loops: listener 0 runs on the calling thread until its socket fails, the others on their own threads
+    public void serve() {
+        for (int i = 1; i < listeners.length; i++) {
+            Thread thread = new Thread(listeners[i], "dns-udp-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            listeners[0].run();
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Runs on a worker, for the queries the listener could not answer locally
+    private void handle(Request request) {
+        ByteBuffer response = workers.responseBuffer();
+        int length;
+        try {
+            length = workers.handler().resolveQuery(request.query, response, MAX_UDP_SIZE, request.lookup);
+        } catch (RuntimeException e) {
+            // Malformed packet (or a bug): answer SERVFAIL rather than leaving the client hanging
+            DNSQueryLog.warn("Failed to handle request: " + e);
+            length = DNSQueryHandler.writeErrorResponse(request.query, response, RCODE_SERVFAIL);
+        }
+        length = limitResponse(request.client, response, length);
+        if (length < 0) return;
+
+        long sendStart = System.nanoTime();
+        if (request.listener.send(response, length, request.client)) {
+            DNSMetrics.stage(DNSMetrics.STAGE_SEND, System.nanoTime() - sendStart);
+            account(request.query, response, length, request.client, request.receivedNanos);
+        }
+    }
+
+    // Response rate limiting: the length to send, the truncated length if slipped, or -1 if dropped
+    private int limitResponse(SocketAddress client, ByteBuffer response, int length) {
+        DNSRateLimiter rateLimiter = workers.settings().rateLimiter; // null without --rate-limit and --rrl
+        if (rateLimiter == null || length < 0) return length;
+        switch (rateLimiter.checkResponse(((InetSocketAddress) client).getAddress(), response, length)) {
+            case DNSRateLimiter.SLIP:
+                DNSMetrics.rateLimited(DNSMetrics.LIMIT_SLIP);
+                return DNSRateLimiter.slip(response);
+            case DNSRateLimiter.DROP:
+                DNSMetrics.rateLimited(DNSMetrics.LIMIT_RESPONSE);
+                return -1;
+            default:
+                return length;
+        }
+    }
+
+    private static void account(ByteBuffer query, ByteBuffer response, int length, SocketAddress client, long receivedNanos) {
+        DNSMetrics.request(DNSQueryLog.PROTO_UDP, response, length, receivedNanos);
+        InetSocketAddress address = (InetSocketAddress) client;
+        DNSQueryLog.query(DNSQueryLog.PROTO_UDP, address.getAddress(), address.getPort(),
+                query, query.limit(), response, length, receivedNanos);
+    }
+
+    /*
+     * A query on its way through the pool. Requests are recycled through their listener's free
+     * list, so the query buffer is allocated only once.
+     */
+    private final class Request implements Runnable {
+        private final Listener listener;
+        private final ByteBuffer query = ByteBuffer.allocateDirect(maxPacketSize);
+        private SocketAddress client;
+        private long receivedNanos;
+        private DNSQueryHandler.Lookup lookup; // the listener's cache lookups, not repeated by the worker
+
+        Request(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handle(this);
+            } finally {
+                client = null;
+                lookup = null;
+                listener.freeRequests.offer(this);
+            }
+        }
+    }
+
+    // One datagram of a batch: the query as received and the response to send, if any
+    private final class Slot {
+        private final ByteBuffer query = ByteBuffer.allocateDirect(maxPacketSize);
+        private final ByteBuffer response = ByteBuffer.allocateDirect(maxPacketSize);
+        private SocketAddress client;
+        private long receivedNanos;
+        private int length; // of the response, -1 if there is nothing to send
+    }
+
+    private final class Listener implements Runnable {
+        private final DatagramChannel channel;
+        private final DNSQueryHandler handler = workers.newHandler();
+        private final Slot[] slots = new Slot[BATCH];
+        private int received; // slots filled by the current batch
+        private int flushed;  // slots of the current batch already sent
+        // at most one request per worker and per queue slot, created when first needed
+        private final ArrayBlockingQueue<Request> freeRequests = new ArrayBlockingQueue<>(workers.capacity());
+        private int createdRequests;
+
+        Listener(DatagramChannel channel) {
+            this.channel = channel;
+            for (int i = 0; i < BATCH; i++) slots[i] = new Slot();
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                while (true) { // Continuous loop to handle incoming requests
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    if (flushed < received) { // the send buffer was full, finish the last batch first
+                        if (!flush()) continue;
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+
+                    received = 0;
+                    flushed = 0;
+                    DNSRateLimiter rateLimiter = workers.settings().rateLimiter;
+                    long drainStart = System.nanoTime();
+                    while (received < BATCH) {
+                        Slot slot = slots[received];
+                        slot.query.clear();
+                        slot.client = channel.receive(slot.query);
+                        if (slot.client == null) break; // socket drained
+                        if (rateLimiter != null && !rateLimiter.allowQuery(((InetSocketAddress) slot.client).getAddress())) {
+                            DNSMetrics.rateLimited(DNSMetrics.LIMIT_QUERY);
+                            // the slot is reused for the next packet; a flood of dropped packets must not starve the admitted ones
+                            if (System.nanoTime() - drainStart > MAX_DROP_NANOS) break;
+                            continue;
+                        }
+                        slot.receivedNanos = System.nanoTime();
+                        slot.query.flip();
+                        received++;
+                    }
+
+                    for (int i = 0; i < received; i++) process(slots[i]);
+                    if (!flush()) key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                DNSQueryLog.error("DNS server encountered IOException: " + e.getMessage());
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // the loop is ending anyway
+                }
+            }
+        }
+
+        // Answers the query locally into the slot's response, or hands it to the pool
+        private void process(Slot slot) {
+            int queryLength = slot.query.limit();
+            int length;
+            try {
+                length = handler.resolveLocally(slot.query, slot.response, MAX_UDP_SIZE);
+            } catch (RuntimeException e) {
+                DNSQueryLog.warn("Failed to handle request: " + e);
+                length = DNSQueryHandler.writeErrorResponse(slot.query.position(0), slot.response, RCODE_SERVFAIL);
+            }
+            slot.query.limit(queryLength).position(0);
+            slot.length = limitResponse(slot.client, slot.response, length == DNSQueryHandler.NEEDS_UPSTREAM ? dispatch(slot) : length);
+        }
+
+        // Copies the query into a request for the pool; returns -1, or the length of the SERVFAIL if it was shed
+        private int dispatch(Slot slot) {
+            Request request = freeRequests.poll();
+            if (request == null && createdRequests < workers.capacity()) {
+                createdRequests++;
+                request = new Request(this);
+            }
+            if (request == null) return shed(slot);
+
+            request.query.clear();
+            request.query.put(slot.query).flip();
+            slot.query.position(0);
+            request.client = slot.client;
+            request.receivedNanos = slot.receivedNanos;
+            request.lookup = handler.pendingLookup();
+            try {
+                workers.execute(request);
+                return -1;
+            } catch (RejectedExecutionException e) {
+                request.client = null;
+                request.lookup = null;
+                freeRequests.offer(request);
+                return shed(slot);
+            }
+        }
+
+        private int shed(Slot slot) {
+            int shed = shedCount.incrementAndGet();
+            DNSMetrics.shed();
+            if ((shed & 1023) == 1) {
+                DNSQueryLog.warn("Server saturated, shedding requests (" + shed + " so far)");
+            }
+            return DNSQueryHandler.writeErrorResponse(slot.query, slot.response, RCODE_SERVFAIL);
+        }
+
+        // Sends the batch's pending responses; false if the socket's send buffer filled up first
+        private boolean flush() {
+            for (; flushed < received; flushed++) {
+                Slot slot = slots[flushed];
+                if (slot.length < 0) continue;
+                long sendStart = System.nanoTime();
+                try {
+                    if (channel.send(slot.response.limit(slot.length).position(0), slot.client) == 0) return false;
+                } catch (IOException e) {
+                    DNSQueryLog.warn("Failed to send response: " + e.getMessage());
+                    continue;
+                }
+                DNSMetrics.stage(DNSMetrics.STAGE_SEND, System.nanoTime() - sendStart);
+                account(slot.query, slot.response, slot.length, slot.client, slot.receivedNanos);
+            }
+            return true;
+        }
+
+        /*
+         * Sends a worker's response. DatagramChannel.send() is thread-safe, so workers share the
+         * listener's channel; with the send buffer full the response is dropped and the client retries.
+         */
+        boolean send(ByteBuffer response, int length, SocketAddress client) {
+            try {
+                return channel.send(response.limit(length).position(0), client) > 0;
+            } catch (IOException e) {
+                DNSQueryLog.warn("Failed to send response: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/*
+ * What a reload can change on the query path, as one immutable snapshot: the upstream, the
+ * authoritative zones and the rate limiter.
+ *
+ * The current snapshot sits in an AtomicReference shared by every handler and listener. They read it
+ * once per request (a volatile read, no lock), so a reload is a single set() and every request is
+ * answered entirely from either the old or the new snapshot. Parts whose settings did not change are
+ * carried over to the new snapshot, so a reload that only touches the zones keeps the upstream's
+ * sockets and server statistics, and the rate limiter keeps its counters.
+ */
+public final class DNSSettings {
+    final DNSUpstream upstream;       // null when neither --resolver nor --recursive is configured
+    final DNSZones zones;             // null without --zone
+    final DNSRateLimiter rateLimiter; // null without --rate-limit and --rrl
+
+    // The settings each part was built from, to tell whether a reload has to rebuild it
+    private final String upstreamKey;
+    private final String zonesKey;
+    private final String rateLimitKey;
+
+    DNSSettings(DNSUpstream upstream, DNSZones zones, DNSRateLimiter rateLimiter) {
+        this(upstream, null, zones, null, rateLimiter, null);
+    }
+
+    private DNSSettings(DNSUpstream upstream, String upstreamKey, DNSZones zones, String zonesKey,
+                        DNSRateLimiter rateLimiter, String rateLimitKey) {
+        this.upstream = upstream;
+        this.upstreamKey = upstreamKey;
+        this.zones = zones;
+        this.zonesKey = zonesKey;
+        this.rateLimiter = rateLimiter;
+        this.rateLimitKey = rateLimitKey;
+    }
+
+    /*
+     * Builds the snapshot for config (a map from Config.read(), not necessarily applied yet), reusing
+     * the parts of previous (null at startup) whose settings are unchanged. Zone files are parsed and
+     * indexed here, on the caller's thread, before anything is swapped.
+     */
+    static DNSSettings load(DNSSettings previous, Map<String, String> config) throws IOException {
+        String upstreamKey = String.join("|", config.get("resolver"), config.get("recursive"),
+                config.get("rootHints"), config.get("nsPort"), config.get("upstreamSockets"));
+        String zonesKey = zonesKey(config);
+        String rateLimitKey = String.join("|", config.get("rateLimit"), config.get("rateBurst"),
+                config.get("rrl"), config.get("rrlSlip"));
+
+        boolean sameUpstream = previous != null && upstreamKey.equals(previous.upstreamKey);
+        boolean sameZones = previous != null && zonesKey.equals(previous.zonesKey);
+        boolean sameRateLimit = previous != null && rateLimitKey.equals(previous.rateLimitKey);
+
+        // The upstream last: it opens sockets, which would leak if a zone file then failed to load
+        DNSRateLimiter rateLimiter = sameRateLimit ? previous.rateLimiter : createRateLimiter(config);
+        DNSZones zones = sameZones ? previous.zones : loadZones(config);
+        DNSUpstream upstream = sameUpstream ? previous.upstream : createUpstream(config);
+        return new DNSSettings(upstream, upstreamKey, zones, zonesKey, rateLimiter, rateLimitKey);
+    }
+
+    // The files named by a "zones" setting (the --zone values), to watch for changes
+    static Path[] zoneFiles(String value) {
+        if (value == null) return new Path[0];
+        String[] zones = value.split(",");
+        Path[] files = new Path[zones.length];
+        for (int i = 0; i < zones.length; i++) files[i] = Path.of(zones[i].substring(zones[i].indexOf('=') + 1));
+        return files;
+    }
+
+    // --zone values plus the files' modification times, so an edited zone file is loaded again
+    private static String zonesKey(Map<String, String> config) {
+        StringBuilder key = new StringBuilder(String.valueOf(config.get("zones")));
+        for (Path file : zoneFiles(config.get("zones"))) {
+            try {
+                key.append('|').append(Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException e) {
+                key.append("|missing"); // reported by loadZones()
+            }
+        }
+        return key.toString();
+    }
+
+    // Every --zone is <file> or <origin>=<file>; all of them go into one index
+    private static DNSZones loadZones(Map<String, String> config) throws IOException {
+        String value = config.get("zones");
+        if (value == null) return null;
+        DNSZones zones = new DNSZones();
+        for (String zone : value.split(",")) {
+            int separator = zone.indexOf('=');
+            String origin = separator < 0 ? null : zone.substring(0, separator);
+            DNSZoneFile.load(Path.of(zone.substring(separator + 1)), origin, zones);
+        }
+        zones.seal();
+        DNSQueryLog.info("Loaded " + zones.getRecordCount() + " zone records for " + (zones.getNodeCount() - 1) + " names");
+        return zones;
+    }
+
+    // --resolver forwards to the given resolvers, --recursive resolves from the root hints, neither answers 8.8.8.8
+    private static DNSUpstream createUpstream(Map<String, String> config) throws IOException {
+        String resolver = config.get("resolver");
+        int sockets = Config.getInt(config, "upstreamSockets", DNSForwarder.DEFAULT_SOCKET_COUNT);
+        if (resolver != null) {
+            return new DNSForwarder(resolver, sockets, DNSForwarder.DEFAULT_TIMEOUT_MS);
+        }
+        if (config.get("recursive") != null) {
+            String rootHints = config.get("rootHints");
+            return new DNSRecursor(rootHints == null ? DNSRecursor.ROOT_HINTS : rootHints, Config.getInt(config, "nsPort", 53),
+                    sockets, DNSRecursor.DEFAULT_TIMEOUT_MS);
+        }
+        return null;
+    }
+
+    // Per-client-network query limit (--rate-limit) and response rate limiting (--rrl), UDP only
+    private static DNSRateLimiter createRateLimiter(Map<String, String> config) {
+        int rateLimit = Config.getInt(config, "rateLimit", 0);
+        int rrl = Config.getInt(config, "rrl", 0);
+        return rateLimit > 0 || rrl > 0
+                ? new DNSRateLimiter(rateLimit, Config.getInt(config, "rateBurst", 2 * rateLimit), rrl, Config.getInt(config, "rrlSlip", 2)) : null;
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * DNS over TCP (RFC 1035 section 4.2.2, RFC 7766).
+ *
+ * Every message on the stream is prefixed with its length as a 2 byte integer. A single selector
+ * thread accepts connections, reads and splits the stream into messages, and writes responses back;
+ * the queries themselves run on the same DNSWorkerPool as UDP.
+ *
+ *   - Connections stay open after a response, so clients can send any number of queries on one.
+ *   - Pipelining: all complete queries in the read buffer are dispatched at once and answered in
+ *     whatever order the workers finish (clients match them by ID, RFC 7766 section 6.2.1.1).
+ *     At most MAX_PIPELINED queries per connection are in flight; beyond that the connection is
+ *     not read until some responses have been sent.
+ *   - Connections that have been idle (nothing in flight, nothing read or written) for longer
+ *     than the idle timeout are closed, as are new ones beyond maxConnections.
+ */
+public class DNSTcpServer {
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int MAX_PIPELINED = 32;
+    private static final int INITIAL_READ_BUFFER = 2 + 512;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final DNSWorkerPool workers;
+    private final long idleTimeoutNanos;
+    private final int maxConnections;
+    private int connectionCount; // selector thread only
+
+    // Connections that got new responses from a worker and need OP_WRITE, handed to the selector thread
+    private final ConcurrentLinkedQueue<Connection> readyToWrite = new ConcurrentLinkedQueue<>();
+    // Shed responses are written on the selector thread, which is not a worker and has its own buffer
+    private final ByteBuffer shedResponse = ByteBuffer.allocate(DNSWorkerPool.MAX_MESSAGE_SIZE);
+
+    public DNSTcpServer(int port, DNSWorkerPool workers, int idleTimeoutMs, int maxConnections) throws IOException {
+        this.workers = workers;
+        this.idleTimeoutNanos = idleTimeoutMs * 1_000_000L;
+        this.maxConnections = maxConnections;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // Runs the selector loop on a background thread
+    public void start() {
+        Thread thread = new Thread(this::serve, "dns-tcp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        while (true) {
+            try {
+                selector.select(1000); // wake up at least once a second to close idle connections
+
+                Connection ready;
+                while ((ready = readyToWrite.poll()) != null) {
+                    ready.enableWrite();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+
+                closeIdleConnections();
+            } catch (IOException e) {
+                DNSQueryLog.error("TCP server encountered IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connectionCount >= maxConnections) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            InetSocketAddress client = (InetSocketAddress) channel.getRemoteAddress();
+            Connection connection = new Connection(channel, client);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount++;
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.inFlight.get() == 0 && connection.outgoing.isEmpty()
+                        && now - connection.lastActivityNanos > idleTimeoutNanos) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final InetSocketAddress client;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        private final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private long lastActivityNanos = System.nanoTime();
+        private boolean endOfStream;
+        private boolean closed;
+
+        Connection(SocketChannel channel, InetSocketAddress client) {
+            this.channel = channel;
+            this.client = client;
+        }
+
+        void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                // Client is done sending. Answer what it already sent, then close.
+                endOfStream = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if (read > 0) {
+                lastActivityNanos = System.nanoTime();
+            }
+            dispatchQueries();
+            closeIfFinished();
+        }
+
+        // Splits the read buffer into length-prefixed messages and hands complete ones to the workers
+        void dispatchQueries() {
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 2 && inFlight.get() < MAX_PIPELINED) {
+                int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+                if (length < DNSHeader.SIZE) { // can't even hold a header, the stream is garbage
+                    close();
+                    return;
+                }
+                if (readBuffer.remaining() < 2 + length) {
+                    if (readBuffer.capacity() < 2 + length) {
+                        ByteBuffer bigger = ByteBuffer.allocate(2 + length);
+                        bigger.put(readBuffer);
+                        readBuffer = bigger;
+                        return; // already in write mode, positioned after the partial message
+                    }
+                    break;
+                }
+                readBuffer.getShort();
+                byte[] query = new byte[length];
+                readBuffer.get(query);
+                dispatch(query);
+            }
+            readBuffer.compact();
+
+            // Stop reading while the pipeline is full, write() resumes it
+            if (!endOfStream) {
+                boolean full = inFlight.get() >= MAX_PIPELINED;
+                key.interestOps(full ? key.interestOps() & ~SelectionKey.OP_READ : key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void dispatch(byte[] query) {
+            inFlight.incrementAndGet();
+            long receivedNanos = System.nanoTime();
+            try {
+                workers.execute(() -> {
+                    ByteBuffer response = workers.responseBuffer();
+                    ByteBuffer queryBuffer = ByteBuffer.wrap(query);
+                    int length;
+                    try {
+                        length = workers.handler().resolveQuery(queryBuffer, response, DNSWorkerPool.MAX_MESSAGE_SIZE);
+                    } catch (RuntimeException e) {
+                        DNSQueryLog.warn("Failed to handle TCP request: " + e);
+                        length = DNSQueryHandler.writeErrorResponse(queryBuffer, response, RCODE_SERVFAIL);
+                    }
+                    if (length >= 0) DNSMetrics.request(DNSQueryLog.PROTO_TCP, response, length, receivedNanos);
+                    queueResponse(response, length);
+                    DNSQueryLog.query(DNSQueryLog.PROTO_TCP, client.getAddress(), client.getPort(),
+                            queryBuffer, query.length, response, length, receivedNanos);
+                });
+            } catch (RejectedExecutionException e) {
+                DNSMetrics.shed();
+                int length = DNSQueryHandler.writeErrorResponse(ByteBuffer.wrap(query), shedResponse, RCODE_SERVFAIL);
+                queueResponse(shedResponse, length);
+            }
+        }
+
+        // Called by workers (and the selector thread when shedding): frame the response and queue it
+        private void queueResponse(ByteBuffer response, int length) {
+            if (length >= 0) {
+                ByteBuffer framed = ByteBuffer.allocate(2 + length);
+                framed.putShort((short) length);
+                framed.put(response.array(), 0, length);
+                framed.flip();
+                outgoing.add(framed);
+            }
+            inFlight.decrementAndGet();
+            readyToWrite.add(this);
+            selector.wakeup();
+        }
+
+        void enableWrite() {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void write() throws IOException {
+            ByteBuffer next;
+            while ((next = outgoing.peek()) != null) {
+                channel.write(next);
+                if (next.hasRemaining()) return; // socket buffer full, wait for the next OP_WRITE
+                outgoing.poll();
+                lastActivityNanos = System.nanoTime();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            // Responses went out, room in the pipeline again: handle queries that were held back
+            if (inFlight.get() < MAX_PIPELINED) dispatchQueries();
+            closeIfFinished();
+        }
+
+        private void closeIfFinished() {
+            if (endOfStream && inFlight.get() == 0 && outgoing.isEmpty()) close();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            connectionCount--;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with this connection
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Where cache misses are resolved: a configured resolver (DNSForwarder) or our own iterative
+ * resolution from the root (DNSRecursor).
+ *
+ * close() releases the sockets and stops the reader thread; queries still pending then time out.
+ */
+public interface DNSUpstream extends Closeable {
+    /*
+     * Resolves a single-question query and returns a future completed with the response (carrying
+     * the query's ID), or completed exceptionally when no usable response could be had in time.
+     */
+    CompletableFuture<byte[]> forwardQueryAsync(byte[] query);
+
+    // The most a forwardQueryAsync() call may take
+    int getTimeoutMs();
+}
@@ -0,0 +1,88 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * The worker threads that run the query pipeline, shared by the UDP and TCP listeners.
+ *
+ * The pool has a fixed number of threads and a bounded queue; execute() throws
+ * RejectedExecutionException when both are full and the listener is expected to shed the request.
+ * Every worker thread owns a DNSQueryHandler and a response buffer large enough for any DNS
+ * message, reused for every request it handles. The handlers read the upstream and the zones from
+ * the shared DNSSettings snapshot, which DNSReloader replaces.
+ */
+public class DNSWorkerPool {
+    public static final int MAX_MESSAGE_SIZE = 65535; // largest message a 2 byte TCP length prefix can carry
+
+    private final DNSCache cache;
+    private final AtomicReference<DNSSettings> settings;
+    private final int ednsUdpSize;
+    private final ThreadPoolExecutor workers;
+    private final ThreadLocal<WorkerState> workerState = ThreadLocal.withInitial(WorkerState::new);
+    private final int maxQueued;
+
+    public DNSWorkerPool(DNSCache cache, AtomicReference<DNSSettings> settings, int ednsUdpSize, int threads, int maxQueued) {
+        this.cache = cache;
+        this.settings = settings;
+        this.ednsUdpSize = ednsUdpSize;
+        this.maxQueued = maxQueued;
+
+        AtomicInteger threadId = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(
+                threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueued),
+                task -> {
+                    Thread thread = new Thread(task, "dns-worker-" + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()); // reject -> the listener sheds the request
+    }
+
+    public void execute(Runnable task) throws RejectedExecutionException {
+        workers.execute(task);
+    }
+
+    // Upper bound of tasks that can be running or queued at the same time
+    public int capacity() {
+        return workers.getMaximumPoolSize() + maxQueued;
+    }
+
+    // A handler for a thread outside the pool (a listener answering queries itself)
+    public DNSQueryHandler newHandler() {
+        return new DNSQueryHandler(cache, settings, ednsUdpSize);
+    }
+
+    // The calling worker thread's handler
+    public DNSQueryHandler handler() {
+        return workerState.get().handler;
+    }
+
+    // The calling worker thread's response buffer, MAX_MESSAGE_SIZE bytes
+    public ByteBuffer responseBuffer() {
+        return workerState.get().response;
+    }
+
+    // The current settings snapshot, for the listeners' rate limiter
+    public DNSSettings settings() {
+        return settings.get();
+    }
+
+    public int getEdnsUdpSize() {
+        return ednsUdpSize;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private final class WorkerState {
+        private final DNSQueryHandler handler = new DNSQueryHandler(cache, settings, ednsUdpSize);
+        private final ByteBuffer response = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Reads an RFC 1035 master file (section 5) into a DNSZones index.
+ *
+ * Supported syntax:
+ *   $ORIGIN and $TTL directives, "@" for the origin, names relative to the origin
+ *   owner, TTL and class may be omitted (a line starting with whitespace reuses the previous owner)
+ *   TTL and class in either order, TTLs with BIND style units (1h, 2d, 1w2d, ...)
+ *   ( ) spanning several lines, ; comments, "quoted strings", \X and \DDD escapes
+ *   class IN only; types A, AAAA, NS, CNAME, PTR, MX, TXT and SOA
+ *
+ * $INCLUDE and other classes/types are rejected with an IOException naming the file and line, as is
+ * anything malformed, so a broken zone never gets served half-loaded.
+ */
+public class DNSZoneFile {
+    private final Path file;
+    private final DNSZones zones;
+    private byte[] origin;
+    private byte[] lastOwner;
+    private int defaultTtl = -1; // $TTL
+    private int lastTtl = -1;    // RFC 1035: an omitted TTL means the last one given
+    private int line;
+
+    private DNSZoneFile(Path file, DNSZones zones, byte[] origin) {
+        this.file = file;
+        this.zones = zones;
+        this.origin = origin;
+    }
+
+    /*
+     * Adds every record of the file to zones. origin is the initial $ORIGIN in presentation format
+     * ("example.com."), or null if the file sets it itself or only uses absolute names.
+     */
+    public static void load(Path file, String origin, DNSZones zones) throws IOException {
+        DNSZoneFile reader = new DNSZoneFile(file, zones, origin == null ? null : absoluteName(origin));
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            reader.read(in);
+        }
+    }
+
+    private void read(BufferedReader in) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        boolean ownerOmitted = false;
+        int depth = 0; // open parentheses, the entry continues on the next line while > 0
+        int entryLine = 0;
+        String text;
+        int lineNumber = 0;
+        while ((text = in.readLine()) != null) {
+            lineNumber++;
+            if (depth == 0) {
+                tokens.clear();
+                ownerOmitted = !text.isEmpty() && (text.charAt(0) == ' ' || text.charAt(0) == '\t');
+                entryLine = lineNumber;
+            }
+            line = lineNumber;
+            depth = tokenize(text, tokens, depth);
+            if (depth == 0 && !tokens.isEmpty()) {
+                line = entryLine;
+                try {
+                    entry(tokens, ownerOmitted);
+                } catch (IllegalArgumentException e) { // also NumberFormatException
+                    throw error(e.getMessage());
+                }
+            }
+        }
+        if (depth > 0) throw error("Unbalanced parentheses");
+    }
+
+    /*
+     * Splits one line into tokens, appending to `tokens`. Quoted strings become one token that keeps
+     * its opening quote as a marker; escapes are left in place and decoded later. Returns the
+     * parenthesis depth at the end of the line.
+     */
+    private int tokenize(String text, List<String> tokens, int depth) throws IOException {
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == ' ' || c == '\t') {
+                i++;
+            } else if (c == ';') {
+                break;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                if (--depth < 0) throw error("Unbalanced parentheses");
+                i++;
+            } else if (c == '"') {
+                int start = ++i;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    if (text.charAt(i) == '\\') i++;
+                    i++;
+                }
+                if (i >= text.length()) throw error("Unterminated quoted string");
+                tokens.add('"' + text.substring(start, i));
+                i++;
+            } else {
+                int start = i;
+                while (i < text.length() && " \t;()\"".indexOf(text.charAt(i)) < 0) {
+                    if (text.charAt(i) == '\\') i++;
+                    i++;
+                }
+                tokens.add(text.substring(start, Math.min(i, text.length())));
+            }
+        }
+        return depth;
+    }
+
+    private void entry(List<String> tokens, boolean ownerOmitted) throws IOException {
+        String first = tokens.get(0);
+        if (!ownerOmitted && first.startsWith("$")) {
+            directive(first.toUpperCase(), tokens);
+            return;
+        }
+
+        int i = 0;
+        byte[] owner;
+        if (ownerOmitted) {
+            if (lastOwner == null) throw error("No previous owner name");
+            owner = lastOwner;
+        } else {
+            owner = name(tokens.get(i++));
+        }
+
+        int ttl = -1;
+        for (int field = 0; field < 2 && i < tokens.size(); field++) { // [TTL] [class] in either order
+            String token = tokens.get(i);
+            if (Character.isDigit(token.charAt(0))) {
+                ttl = ttl(token);
+                i++;
+            } else if (token.equalsIgnoreCase("IN")) {
+                i++;
+            } else if (token.equalsIgnoreCase("CH") || token.equalsIgnoreCase("HS") || token.equalsIgnoreCase("CS")) {
+                throw error("Only class IN is supported");
+            } else {
+                break;
+            }
+        }
+        if (i >= tokens.size()) throw error("Missing type");
+        String type = tokens.get(i++).toUpperCase();
+        List<String> rdata = tokens.subList(i, tokens.size());
+
+        if (ttl >= 0) {
+            lastTtl = ttl;
+        } else if (defaultTtl >= 0) {
+            ttl = defaultTtl;
+        } else if (lastTtl >= 0) {
+            ttl = lastTtl;
+        } else if (!type.equals("SOA")) {
+            throw error("No TTL given and no $TTL in effect");
+        }
+
+        lastOwner = owner;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        short typeCode;
+        switch (type) {
+            case "A":
+                typeCode = DNSRecord.TYPE_A;
+                expect(rdata, 1);
+                out.writeBytes(ipv4(rdata.get(0)));
+                break;
+            case "AAAA":
+                typeCode = DNSRecord.TYPE_AAAA;
+                expect(rdata, 1);
+                out.writeBytes(ipv6(rdata.get(0)));
+                break;
+            case "NS":
+            case "CNAME":
+            case "PTR":
+                typeCode = type.equals("NS") ? DNSRecord.TYPE_NS : type.equals("CNAME") ? DNSRecord.TYPE_CNAME : DNSRecord.TYPE_PTR;
+                expect(rdata, 1);
+                out.writeBytes(name(rdata.get(0)));
+                break;
+            case "MX":
+                typeCode = DNSRecord.TYPE_MX;
+                expect(rdata, 2);
+                writeShort(out, uint16(rdata.get(0)));
+                out.writeBytes(name(rdata.get(1)));
+                break;
+            case "TXT":
+                typeCode = DNSRecord.TYPE_TXT;
+                if (rdata.isEmpty()) throw error("TXT needs at least one string");
+                for (String string : rdata) {
+                    byte[] bytes = unescape(string.startsWith("\"") ? string.substring(1) : string);
+                    if (bytes.length > 255) throw error("TXT string longer than 255 bytes");
+                    out.write(bytes.length);
+                    out.writeBytes(bytes);
+                }
+                break;
+            case "SOA":
+                typeCode = DNSRecord.TYPE_SOA;
+                expect(rdata, 7);
+                out.writeBytes(name(rdata.get(0))); // MNAME
+                out.writeBytes(name(rdata.get(1))); // RNAME
+                out.writeBytes(ByteBuffer.allocate(4).putInt((int) Long.parseLong(rdata.get(2))).array()); // SERIAL
+                for (int field = 3; field < 7; field++) { // REFRESH, RETRY, EXPIRE, MINIMUM
+                    out.writeBytes(ByteBuffer.allocate(4).putInt(ttl(rdata.get(field))).array());
+                }
+                if (ttl < 0) ttl = ttl(rdata.get(6)); // no TTL anywhere: fall back to MINIMUM
+                break;
+            default:
+                throw error("Unsupported record type " + type);
+        }
+        zones.add(owner, typeCode, ttl, out.toByteArray());
+    }
+
+    private void directive(String directive, List<String> tokens) throws IOException {
+        switch (directive) {
+            case "$ORIGIN":
+                expect(tokens.subList(1, tokens.size()), 1);
+                origin = name(tokens.get(1));
+                break;
+            case "$TTL":
+                expect(tokens.subList(1, tokens.size()), 1);
+                defaultTtl = ttl(tokens.get(1));
+                break;
+            default:
+                throw error("Unsupported directive " + directive);
+        }
+    }
+
+    private void expect(List<String> rdata, int count) throws IOException {
+        if (rdata.size() != count) throw error("Expected " + count + " RDATA fields, found " + rdata.size());
+    }
+
+    // Owner or RDATA name: "@" is the origin, names without a trailing dot are relative to it
+    private byte[] name(String text) throws IOException {
+        if (text.equals("@")) {
+            if (origin == null) throw error("@ used without an $ORIGIN");
+            return origin;
+        }
+        byte[] name = encodeName(text);
+        if (isAbsolute(text)) return name;
+        if (origin == null) throw error("Relative name " + text + " without an $ORIGIN");
+        byte[] full = new byte[name.length - 1 + origin.length];
+        System.arraycopy(name, 0, full, 0, name.length - 1);
+        System.arraycopy(origin, 0, full, name.length - 1, origin.length);
+        if (full.length > 255) throw error("Name longer than 255 bytes");
+        return full;
+    }
+
+    private static byte[] absoluteName(String text) {
+        return encodeName(text.endsWith(".") ? text : text + ".");
+    }
+
+    // A name is absolute if it ends with a dot that is not escaped
+    private static boolean isAbsolute(String text) {
+        if (!text.endsWith(".")) return false;
+        int backslashes = 0;
+        for (int i = text.length() - 2; i >= 0 && text.charAt(i) == '\\'; i--) backslashes++;
+        return backslashes % 2 == 0;
+    }
+
+    // Presentation format to uncompressed wire format, labels split on unescaped dots
+    private static byte[] encodeName(String text) {
+        if (text.equals(".")) return new byte[] {0}; // the root
+        ByteArrayOutputStream name = new ByteArrayOutputStream();
+        ByteArrayOutputStream labelBytes = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                endLabel(name, labelBytes);
+                i++;
+            } else if (c == '\\') {
+                i = unescapeOne(text, i, labelBytes);
+            } else {
+                labelBytes.write(c);
+                i++;
+            }
+        }
+        if (labelBytes.size() > 0) endLabel(name, labelBytes);
+        name.write(0);
+        if (name.size() > 255) throw new IllegalArgumentException("Name longer than 255 bytes: " + text);
+        return name.toByteArray();
+    }
+
+    private static void endLabel(ByteArrayOutputStream name, ByteArrayOutputStream labelBytes) {
+        if (labelBytes.size() == 0) throw new IllegalArgumentException("Empty label");
+        if (labelBytes.size() > 63) throw new IllegalArgumentException("Label longer than 63 bytes");
+        name.write(labelBytes.size());
+        name.writeBytes(labelBytes.toByteArray());
+        labelBytes.reset();
+    }
+
+    private static byte[] unescape(String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < text.length()) {
+            if (text.charAt(i) == '\\') {
+                i = unescapeOne(text, i, out);
+            } else {
+                out.writeBytes(String.valueOf(text.charAt(i++)).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Decodes the \X or \DDD escape at text[i] into out and returns the index after it
+    private static int unescapeOne(String text, int i, ByteArrayOutputStream out) {
+        if (i + 1 >= text.length()) throw new IllegalArgumentException("Dangling backslash");
+        if (i + 3 < text.length() && Character.isDigit(text.charAt(i + 1))) {
+            int value = Integer.parseInt(text.substring(i + 1, i + 4));
+            if (value > 255) throw new IllegalArgumentException("Escape out of range: \\" + value);
+            out.write(value);
+            return i + 4;
+        }
+        out.write(text.charAt(i + 1));
+        return i + 2;
+    }
+
+    // Seconds, or BIND style "1w2d3h4m5s" (case-insensitive)
+    private static int ttl(String text) {
+        long total = 0;
+        long number = -1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isDigit(c)) {
+                number = (number < 0 ? 0 : number * 10) + (c - '0');
+                if (number > 0xFFFFFFFFL) throw new IllegalArgumentException("TTL out of range: " + text);
+                continue;
+            }
+            int unit = c == 's' ? 1 : c == 'm' ? 60 : c == 'h' ? 3600 : c == 'd' ? 86400 : c == 'w' ? 604800 : 0;
+            if (unit == 0 || number < 0) throw new IllegalArgumentException("Bad TTL: " + text);
+            total += number * unit;
+            number = -1;
+        }
+        if (number >= 0) total += number;
+        if (total > Integer.MAX_VALUE) throw new IllegalArgumentException("TTL out of range: " + text); // RFC 2181 section 8
+        return (int) total;
+    }
+
+    private static byte[] ipv4(String text) {
+        String[] parts = text.split("\\.");
+        if (parts.length != 4) throw new IllegalArgumentException("Bad IPv4 address: " + text);
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int octet = Integer.parseInt(parts[i]);
+            if (octet < 0 || octet > 255) throw new IllegalArgumentException("Bad IPv4 address: " + text);
+            address[i] = (byte) octet;
+        }
+        return address;
+    }
+
+    private static byte[] ipv6(String text) {
+        // only literals reach getByName (it would otherwise resolve host names)
+        if (text.indexOf(':') < 0) throw new IllegalArgumentException("Bad IPv6 address: " + text);
+        try {
+            byte[] address = InetAddress.getByName(text).getAddress();
+            if (address.length == 16) return address;
+            byte[] mapped = new byte[16]; // ::ffff:a.b.c.d comes back as an IPv4 address
+            mapped[10] = (byte) 0xFF;
+            mapped[11] = (byte) 0xFF;
+            System.arraycopy(address, 0, mapped, 12, 4);
+            return mapped;
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Bad IPv6 address: " + text);
+        }
+    }
+
+    private static int uint16(String text) {
+        int value = Integer.parseInt(text);
+        if (value < 0 || value > 0xFFFF) throw new IllegalArgumentException("Value out of range: " + text);
+        return value;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private IOException error(String message) {
+        return new IOException(file + ":" + line + ": " + message);
+    }
+}
@@ -0,0 +1,170 @@
+import java.nio.ByteBuffer;
+
+/*
+ * Answers questions from the authoritative zones (RFC 1034 section 4.3.2, RFC 4592 wildcards).
+ *
+ * For every question, in order:
+ *   - not inside any loaded zone            REFUSED
+ *   - below a zone cut                      referral: the cut's NS records in the authority section,
+ *                                           their addresses (glue) in the additional section, AA=0
+ *   - name exists, CNAME and QTYPE != CNAME the CNAME, then the lookup restarts at its target
+ *   - name exists, has QTYPE                those records
+ *   - name exists, lacks QTYPE              NODATA: NOERROR with the zone's SOA in the authority section
+ *   - name missing, "*" under its closest   answered from the wildcard as if the name existed
+ *     encloser
+ *   - name missing                          NXDOMAIN with the zone's SOA in the authority section
+ *
+ * One resolver belongs to each DNSQueryHandler, its scratch state is reused so answering does not
+ * allocate.
+ */
+public class DNSZoneResolver {
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+    private static final short CLASS_IN = 1;
+    private static final short CLASS_ANY = 255;
+    private static final int MAX_CNAME_CHAIN = 8;
+    private static final int MAX_SECTION_ENTRIES = 64;
+
+    private final DNSZones zones;
+    private final NameCompressor compressor;
+    private final DNSZones.Match match = new DNSZones.Match();
+    private final DNSZones.Match glue = new DNSZones.Match();
+    private final byte[] owner = new byte[256];
+
+    // Records for the authority section, written after every question's answers: RRset start + owner node
+    private final int[] authorityRRsets = new int[MAX_SECTION_ENTRIES];
+    private final int[] authorityOwners = new int[MAX_SECTION_ENTRIES];
+    private int authorityEntries;
+
+    DNSZoneResolver(DNSZones zones, NameCompressor compressor) {
+        this.zones = zones;
+        this.compressor = compressor;
+    }
+
+    // Whether the question whose name starts at nameOffset of the message falls inside a loaded zone
+    boolean isAuthoritative(ByteBuffer message, int nameOffset) {
+        int typeOffset = loadName(message, nameOffset);
+        short qclass = message.getShort(typeOffset + 2);
+        if (qclass != CLASS_IN && qclass != CLASS_ANY) return false;
+        zones.lookup(match);
+        return match.zone >= 0;
+    }
+
+    /*
+     * Writes the answer, authority and additional sections for the questions whose names start at
+     * nameOffsets[0 .. count - 1] of the response, and patches the counts, AA and RCODE in its header.
+     */
+    void resolve(ByteBuffer response, int[] nameOffsets, int count) {
+        authorityEntries = 0;
+        int answers = 0;
+        int rcode = 0;
+        boolean referral = false;
+
+        for (int q = 0; q < count; q++) {
+            int typeOffset = loadName(response, nameOffsets[q]);
+            short qtype = response.getShort(typeOffset);
+            short qclass = response.getShort(typeOffset + 2);
+            zones.lookup(match);
+            if ((qclass != CLASS_IN && qclass != CLASS_ANY) || match.zone < 0) {
+                rcode = RCODE_REFUSED;
+                continue;
+            }
+
+            for (int hops = 0; ; hops++) {
+                if (match.cut >= 0) {
+                    addAuthority(zones.findRRset(match.cut, DNSRecord.TYPE_NS), match.cut);
+                    referral = true;
+                    break;
+                }
+                int node = match.node;
+                if (node < 0) {
+                    node = zones.findWildcard(match.encloser);
+                    if (node < 0) {
+                        rcode = RCODE_NXDOMAIN;
+                        addAuthority(zones.findRRset(match.zone, DNSRecord.TYPE_SOA), match.zone);
+                        break;
+                    }
+                }
+
+                int cname = zones.findRRset(node, DNSRecord.TYPE_CNAME);
+                if (cname >= 0 && qtype != DNSRecord.TYPE_CNAME && qtype != DNSRecord.TYPE_ANY) {
+                    // The owner is the name looked up, which for a wildcard is the query name itself
+                    answers += zones.writeRRset(response, cname, cname + 1, match.name, 0, Integer.MAX_VALUE, compressor);
+                    if (hops == MAX_CNAME_CHAIN) break;
+                    zones.copyTarget(cname, match.name);
+                    zones.lookup(match);
+                    if (match.zone < 0) break; // target is elsewhere, the client resolves it from here
+                    continue;
+                }
+
+                int written = writeRRsets(response, node, qtype);
+                if (written == 0) addAuthority(zones.findRRset(match.zone, DNSRecord.TYPE_SOA), match.zone); // NODATA
+                answers += written;
+                break;
+            }
+        }
+
+        int authority = 0;
+        int additional = 0;
+        for (int i = 0; i < authorityEntries; i++) {
+            int rrset = authorityRRsets[i];
+            zones.writeOwner(authorityOwners[i], owner);
+            int maxTtl = zones.getType(rrset) == DNSRecord.TYPE_SOA ? zones.negativeTtl(rrset) : Integer.MAX_VALUE; // RFC 2308 section 3
+            authority += zones.writeRRset(response, rrset, zones.rrsetEnd(authorityOwners[i], rrset), owner, 0, maxTtl, compressor);
+        }
+        for (int i = 0; i < authorityEntries; i++) {
+            if (zones.getType(authorityRRsets[i]) == DNSRecord.TYPE_NS) {
+                additional += writeGlue(response, authorityOwners[i], authorityRRsets[i]);
+            }
+        }
+
+        DNSHeader.setAnswerCount(response, answers);
+        DNSHeader.setAuthorityCount(response, authority);
+        DNSHeader.setAdditionalCount(response, additional);
+        DNSHeader.setAA(response, !referral && rcode != RCODE_REFUSED);
+        if (rcode != 0) DNSHeader.setRC(response, rcode);
+    }
+
+    // Writes the node's records of the given type (every type for ANY), owned by match.name
+    private int writeRRsets(ByteBuffer response, int node, short qtype) {
+        if (qtype == DNSRecord.TYPE_ANY) {
+            return zones.writeRRset(response, zones.firstRecord(node), zones.endRecord(node), match.name, 0, Integer.MAX_VALUE, compressor);
+        }
+        int rrset = zones.findRRset(node, qtype);
+        if (rrset < 0) return 0;
+        return zones.writeRRset(response, rrset, zones.rrsetEnd(node, rrset), match.name, 0, Integer.MAX_VALUE, compressor);
+    }
+
+    // Addresses of the delegation's name servers that live in our zones (RFC 1034 section 4.2.1 glue)
+    private int writeGlue(ByteBuffer response, int cut, int nsRRset) {
+        int written = 0;
+        for (int ns = nsRRset; ns < zones.rrsetEnd(cut, nsRRset); ns++) {
+            zones.copyTarget(ns, glue.name);
+            int node = zones.findExact(glue);
+            if (node < 0) continue;
+            int a = zones.findRRset(node, DNSRecord.TYPE_A);
+            if (a >= 0) written += zones.writeRRset(response, a, zones.rrsetEnd(node, a), glue.name, 0, Integer.MAX_VALUE, compressor);
+            int aaaa = zones.findRRset(node, DNSRecord.TYPE_AAAA);
+            if (aaaa >= 0) written += zones.writeRRset(response, aaaa, zones.rrsetEnd(node, aaaa), glue.name, 0, Integer.MAX_VALUE, compressor);
+        }
+        return written;
+    }
+
+    // Remembers an RRset for the authority section, once even if several questions need it
+    private void addAuthority(int rrset, int ownerNode) {
+        if (rrset < 0) return;
+        for (int i = 0; i < authorityEntries; i++) {
+            if (authorityRRsets[i] == rrset) return;
+        }
+        if (authorityEntries == MAX_SECTION_ENTRIES) return;
+        authorityRRsets[authorityEntries] = rrset;
+        authorityOwners[authorityEntries] = ownerNode;
+        authorityEntries++;
+    }
+
+    // Decompresses the name at nameOffset into match.name and returns the offset right after it
+    private int loadName(ByteBuffer message, int nameOffset) {
+        match.nameBuffer.clear();
+        return DNSName.copy(message, nameOffset, match.nameBuffer);
+    }
+}
@@ -0,0 +1,434 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * In-memory index of the zones this server is authoritative for.
+ *
+ * All names of all loaded zones live in one label trie, stored in flat primitive arrays instead of
+ * node objects so that millions of names cost a few dozen bytes each:
+ *
+ *   node ids     0 is the root, every other node is one label below its parent
+ *   parent[]     parent node id
+ *   label[]      offset of the node's label (length byte + lowercased bytes) in labels[]
+ *   edges[]      open addressing hash table (parent id, label) -> child node id, 0 = empty slot
+ *                (the root is never anybody's child)
+ *   rrStart[]    records of node n are rrStart[n] .. rrStart[n + 1] - 1, sorted by type
+ *
+ * Records are kept in parallel arrays too. When the index is sealed every record is pre-encoded
+ * into one byte array exactly as it goes on the wire after the owner name (TYPE, CLASS, TTL,
+ * RDLENGTH, RDATA with uncompressed names), in the same (node, type) order as the arrays, so
+ * answering with an RRset is a compressed owner name plus a bulk put per record.
+ * A lookup walks the query name from the root label by label, so it costs O(name length) and
+ * allocates nothing: the caller brings a Match, which holds the name and the results.
+ *
+ * The index is filled with add() while zone files are loaded and then sealed with seal(); it is
+ * read-only (and safe to share between threads) afterwards.
+ */
+public class DNSZones {
+    private static final int ROOT = 0;
+    private static final int MAX_LABELS = 128;
+
+    // Per node summary of the record types it owns, to classify nodes without scanning records
+    private static final byte FLAG_SOA = 1;   // zone apex
+    private static final byte FLAG_NS = 2;    // zone cut unless it is also an apex
+    private static final byte FLAG_CNAME = 4;
+    private static final byte FLAG_DATA = 8;  // any type other than CNAME
+
+    private static final byte[] WILDCARD_LABEL = {1, '*'};
+
+    // Trie
+    private int nodeCount = 1;
+    private int[] parent = new int[1024];
+    private int[] label = new int[1024];
+    private int[] nodeHash = new int[1024];
+    private byte[] flags = new byte[1024];
+    private int[] rrStart;
+    private byte[] labels = new byte[16 * 1024];
+    private int labelsUsed = 1; // labels[0] is the root's empty label
+    private int[] edges = new int[2048];
+
+    // Records. Until seal(): rrData/rrLength locate the RDATA in rdata[]; afterwards rrData is the
+    // record's offset in wire[] and rrNode, rrTtl, rrLength and rdata are dropped.
+    private int recordCount;
+    private int[] rrNode = new int[1024];
+    private short[] rrType = new short[1024];
+    private int[] rrTtl = new int[1024];
+    private int[] rrData = new int[1024];
+    private char[] rrLength = new char[1024]; // RDLENGTH is 16 bits, char is the unsigned short
+    private byte[] rdata = new byte[64 * 1024];
+    private int rdataUsed;
+    private byte[] wire;
+
+    private static final int TTL_OFFSET = 4;    // in an encoded record
+    private static final int RDATA_OFFSET = 10;
+
+    private boolean sealed;
+
+    /*
+     * Adds a record (load time only). owner is an uncompressed wire-format name, rdata is the
+     * record's RDATA with any names in it uncompressed.
+     */
+    public void add(byte[] owner, short type, int ttl, byte[] data) {
+        if (sealed) throw new IllegalStateException("Zones are sealed");
+        int node = insert(owner);
+        byte typeFlag = type == DNSRecord.TYPE_CNAME ? FLAG_CNAME : FLAG_DATA;
+        if (type == DNSRecord.TYPE_SOA) typeFlag |= FLAG_SOA;
+        if (type == DNSRecord.TYPE_NS) typeFlag |= FLAG_NS;
+        if (((flags[node] | typeFlag) & (FLAG_CNAME | FLAG_DATA)) == (FLAG_CNAME | FLAG_DATA)) {
+            throw new IllegalArgumentException("CNAME and other data at " + DNSName.toString(owner)); // RFC 1034 section 3.6.2
+        }
+        flags[node] |= typeFlag;
+
+        if (recordCount == rrNode.length) {
+            int capacity = recordCount * 2;
+            rrNode = Arrays.copyOf(rrNode, capacity);
+            rrType = Arrays.copyOf(rrType, capacity);
+            rrTtl = Arrays.copyOf(rrTtl, capacity);
+            rrData = Arrays.copyOf(rrData, capacity);
+            rrLength = Arrays.copyOf(rrLength, capacity);
+        }
+        while (rdataUsed + data.length > rdata.length) rdata = Arrays.copyOf(rdata, rdata.length * 2);
+        System.arraycopy(data, 0, rdata, rdataUsed, data.length);
+
+        rrNode[recordCount] = node;
+        rrType[recordCount] = type;
+        rrTtl[recordCount] = ttl;
+        rrData[recordCount] = rdataUsed;
+        rrLength[recordCount] = (char) data.length;
+        recordCount++;
+        rdataUsed += data.length;
+    }
+
+    /*
+     * Groups the records by node (a counting sort on the node id), orders each node's records by type,
+     * pre-encodes them and trims the arrays. After this the index is read-only.
+     */
+    public void seal() {
+        rrStart = new int[nodeCount + 1];
+        for (int i = 0; i < recordCount; i++) rrStart[rrNode[i] + 1]++;
+        for (int n = 0; n < nodeCount; n++) rrStart[n + 1] += rrStart[n];
+
+        int[] next = Arrays.copyOf(rrStart, nodeCount);
+        short[] type = new short[recordCount];
+        int[] ttl = new int[recordCount];
+        int[] data = new int[recordCount];
+        char[] length = new char[recordCount];
+        for (int i = 0; i < recordCount; i++) {
+            int slot = next[rrNode[i]]++;
+            type[slot] = rrType[i];
+            ttl[slot] = rrTtl[i];
+            data[slot] = rrData[i];
+            length[slot] = rrLength[i];
+        }
+        // A node owns a handful of records at most, insertion sort by type keeps equal types in file order
+        for (int n = 0; n < nodeCount; n++) {
+            for (int i = rrStart[n] + 1; i < rrStart[n + 1]; i++) {
+                for (int j = i; j > rrStart[n] && type[j - 1] > type[j]; j--) {
+                    swap(type, ttl, data, length, j - 1, j);
+                }
+            }
+        }
+        // Pre-encode every record in its sorted position
+        wire = new byte[recordCount * RDATA_OFFSET + rdataUsed];
+        ByteBuffer encoder = ByteBuffer.wrap(wire);
+        for (int rr = 0; rr < recordCount; rr++) {
+            int offset = encoder.position();
+            encoder.putShort(type[rr]);
+            encoder.putShort((short) 1); // IN
+            encoder.putInt(ttl[rr]);
+            encoder.putShort((short) length[rr]);
+            encoder.put(rdata, data[rr], length[rr]);
+            data[rr] = offset;
+        }
+        rrType = type;
+        rrData = data;
+        rrNode = null;
+        rrTtl = null;
+        rrLength = null;
+        rdata = null;
+        labels = Arrays.copyOf(labels, labelsUsed);
+        parent = Arrays.copyOf(parent, nodeCount);
+        label = Arrays.copyOf(label, nodeCount);
+        flags = Arrays.copyOf(flags, nodeCount);
+        nodeHash = null; // only needed to grow the edge table
+        sealed = true;
+    }
+
+    private static void swap(short[] type, int[] ttl, int[] data, char[] length, int a, int b) {
+        short t = type[a]; type[a] = type[b]; type[b] = t;
+        int l = ttl[a]; ttl[a] = ttl[b]; ttl[b] = l;
+        int d = data[a]; data[a] = data[b]; data[b] = d;
+        char c = length[a]; length[a] = length[b]; length[b] = c;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    // Inserts every label of the name (root first) and returns the name's node
+    private int insert(byte[] name) {
+        int[] starts = new int[MAX_LABELS];
+        int count = splitLabels(name, starts);
+        int node = ROOT;
+        for (int i = count - 1; i >= 0; i--) {
+            int child = findChild(node, name, starts[i]);
+            node = child >= 0 ? child : addChild(node, name, starts[i]);
+        }
+        return node;
+    }
+
+    private int addChild(int parentNode, byte[] name, int labelStart) {
+        if (nodeCount == parent.length) {
+            int capacity = nodeCount * 2;
+            parent = Arrays.copyOf(parent, capacity);
+            label = Arrays.copyOf(label, capacity);
+            nodeHash = Arrays.copyOf(nodeHash, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        int labelLength = name[labelStart] + 1;
+        while (labelsUsed + labelLength > labels.length) labels = Arrays.copyOf(labels, labels.length * 2);
+        labels[labelsUsed] = name[labelStart];
+        for (int i = 1; i < labelLength; i++) labels[labelsUsed + i] = DNSName.toLower(name[labelStart + i]);
+
+        int node = nodeCount++;
+        parent[node] = parentNode;
+        label[node] = labelsUsed;
+        nodeHash[node] = edgeHash(parentNode, name, labelStart);
+        labelsUsed += labelLength;
+
+        if (nodeCount * 4 > edges.length * 3) { // keep the edge table at most 3/4 full
+            int[] old = edges;
+            edges = new int[old.length * 2];
+            for (int child : old) {
+                if (child != 0) putEdge(child);
+            }
+        }
+        putEdge(node);
+        return node;
+    }
+
+    private void putEdge(int child) {
+        int mask = edges.length - 1;
+        int slot = nodeHash[child] & mask;
+        while (edges[slot] != 0) slot = (slot + 1) & mask;
+        edges[slot] = child;
+    }
+
+    // The child of parentNode whose label equals (ignoring case) the label at name[labelStart], or -1
+    private int findChild(int parentNode, byte[] name, int labelStart) {
+        int mask = edges.length - 1;
+        for (int slot = edgeHash(parentNode, name, labelStart) & mask; edges[slot] != 0; slot = (slot + 1) & mask) {
+            int child = edges[slot];
+            if (parent[child] == parentNode && labelEquals(label[child], name, labelStart)) return child;
+        }
+        return -1;
+    }
+
+    private boolean labelEquals(int labelOffset, byte[] name, int labelStart) {
+        int length = labels[labelOffset];
+        if (length != name[labelStart]) return false;
+        for (int i = 1; i <= length; i++) {
+            if (labels[labelOffset + i] != DNSName.toLower(name[labelStart + i])) return false;
+        }
+        return true;
+    }
+
+    private static int edgeHash(int parentNode, byte[] name, int labelStart) {
+        int length = name[labelStart];
+        int h = parentNode * 0x9E3779B9 + length;
+        for (int i = 1; i <= length; i++) {
+            h = h * 31 + DNSName.toLower(name[labelStart + i]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // Fills starts with the offset of every label of the name and returns the label count
+    private static int splitLabels(byte[] name, int[] starts) {
+        int count = 0;
+        int index = 0;
+        while (name[index] != 0) {
+            if (count == MAX_LABELS) throw new IllegalArgumentException("Name has too many labels");
+            starts[count++] = index;
+            index += name[index] + 1;
+        }
+        return count;
+    }
+
+    /*
+     * Finds match.name in the trie following RFC 1034 section 4.3.2:
+     *   - zone is the deepest zone apex (SOA owner) above or at the name, -1 if we are not authoritative
+     *   - descending stops at a zone cut (NS owner below an apex): cut is set and the answer is a referral
+     *   - node is the name's own node (-1 if it does not exist), encloser the deepest existing ancestor
+     */
+    public void lookup(Match match) {
+        int count = splitLabels(match.name, match.labelStarts);
+        int node = ROOT;
+        match.zone = (flags[ROOT] & FLAG_SOA) != 0 ? ROOT : -1;
+        match.cut = -1;
+        for (int i = count - 1; i >= 0; i--) {
+            int child = findChild(node, match.name, match.labelStarts[i]);
+            if (child < 0) {
+                match.node = -1;
+                match.encloser = node;
+                return;
+            }
+            node = child;
+            if ((flags[node] & FLAG_SOA) != 0) {
+                match.zone = node;
+            } else if ((flags[node] & FLAG_NS) != 0 && match.zone >= 0) {
+                match.cut = node;
+                match.node = i == 0 ? node : -1;
+                match.encloser = node;
+                return;
+            }
+        }
+        match.node = node;
+        match.encloser = node;
+    }
+
+    // The node of match.name ignoring zone cuts (glue lives below them), or -1
+    public int findExact(Match match) {
+        int count = splitLabels(match.name, match.labelStarts);
+        int node = ROOT;
+        for (int i = count - 1; i >= 0 && node >= 0; i--) {
+            node = findChild(node, match.name, match.labelStarts[i]);
+        }
+        return node;
+    }
+
+    // The "*" child of the node (RFC 4592 source of synthesis), or -1
+    public int findWildcard(int node) {
+        return findChild(node, WILDCARD_LABEL, 0);
+    }
+
+    // Index of the node's first record of the given type, or -1
+    public int findRRset(int node, short type) {
+        for (int rr = rrStart[node]; rr < rrStart[node + 1]; rr++) {
+            if (rrType[rr] == type) return rr;
+        }
+        return -1;
+    }
+
+    // Index right after the last record of the node's RRset starting at rr
+    public int rrsetEnd(int node, int rr) {
+        int end = rr + 1;
+        while (end < rrStart[node + 1] && rrType[end] == rrType[rr]) end++;
+        return end;
+    }
+
+    public int firstRecord(int node) {
+        return rrStart[node];
+    }
+
+    public int endRecord(int node) {
+        return rrStart[node + 1];
+    }
+
+    public boolean hasRecords(int node) {
+        return rrStart[node + 1] > rrStart[node];
+    }
+
+    public short getType(int rr) {
+        return rrType[rr];
+    }
+
+    public int getTtl(int rr) {
+        return readInt(rrData[rr] + TTL_OFFSET);
+    }
+
+    // RFC 2308 section 5: SOA TTL capped by its MINIMUM field (the last 4 bytes of the RDATA)
+    public int negativeTtl(int soa) {
+        return Math.min(getTtl(soa), readInt(recordEnd(soa) - 4));
+    }
+
+    private int recordEnd(int rr) {
+        int offset = rrData[rr];
+        return offset + RDATA_OFFSET + (((wire[offset + 8] & 0xFF) << 8) | (wire[offset + 9] & 0xFF));
+    }
+
+    private int readInt(int offset) {
+        return ((wire[offset] & 0xFF) << 24) | ((wire[offset + 1] & 0xFF) << 16)
+                | ((wire[offset + 2] & 0xFF) << 8) | (wire[offset + 3] & 0xFF);
+    }
+
+    /*
+     * Copies the domain name at the start of the record's RDATA (the target of a CNAME or NS record)
+     * into dest and returns its length.
+     */
+    public int copyTarget(int rr, byte[] dest) {
+        int start = rrData[rr] + RDATA_OFFSET;
+        int index = start;
+        while (wire[index] != 0) index += wire[index] + 1;
+        int length = index + 1 - start;
+        System.arraycopy(wire, start, dest, 0, length);
+        return length;
+    }
+
+    // Writes the node's full name (its label, then its parent's, up to the root) into dest
+    public int writeOwner(int node, byte[] dest) {
+        int length = 0;
+        for (int n = node; n != ROOT; n = parent[n]) {
+            int labelLength = labels[label[n]] + 1;
+            System.arraycopy(labels, label[n], dest, length, labelLength);
+            length += labelLength;
+        }
+        dest[length++] = 0;
+        return length;
+    }
+
+    /*
+     * Writes the records first .. end - 1 (one RRset, or consecutive ones of a node) owned by the name
+     * at owner[ownerStart], with TTLs capped at maxTtl. The owner goes through the compressor once;
+     * every further record repeats it as a pointer and the rest of each record is copied as is.
+     * Returns the number of records written. Throws DNSResponseFullException when the next record
+     * may not fit; the records already written are left in the buffer.
+     */
+    public int writeRRset(ByteBuffer buffer, int first, int end, byte[] owner, int ownerStart, int maxTtl, NameCompressor compressor) {
+        int ownerLength = DNSName.length(owner, ownerStart);
+        DNSResponseFullException.ensureRemaining(buffer, ownerLength + (first < end ? recordEnd(first) - rrData[first] : 0));
+        int ownerOffset = buffer.position();
+        compressor.writeName(buffer, owner, ownerStart);
+        short ownerPointer;
+        if (buffer.position() - ownerOffset == 2 && (buffer.get(ownerOffset) & 0xC0) == 0xC0) {
+            ownerPointer = buffer.getShort(ownerOffset); // the owner already was a pointer
+        } else if (ownerOffset <= 0x3FFF) {
+            ownerPointer = (short) (0xC000 | ownerOffset);
+        } else {
+            ownerPointer = 0; // too far into the message for a pointer, compress every owner
+        }
+
+        for (int rr = first; rr < end; rr++) {
+            int offset = rrData[rr];
+            int recordLength = recordEnd(rr) - offset;
+            if (rr > first) {
+                DNSResponseFullException.ensureRemaining(buffer, (ownerPointer != 0 ? 2 : ownerLength) + recordLength);
+                if (ownerPointer != 0) buffer.putShort(ownerPointer);
+                else compressor.writeName(buffer, owner, ownerStart);
+            }
+            int recordStart = buffer.position();
+            buffer.put(wire, offset, recordLength);
+            if (readInt(offset + TTL_OFFSET) > maxTtl) buffer.putInt(recordStart + TTL_OFFSET, maxTtl);
+            int target = DNSRecord.targetOffset(rrType[rr]);
+            if (target >= 0) compressor.addName(buffer, recordStart + RDATA_OFFSET + target); // e.g. the owner after a CNAME
+        }
+        return end - first;
+    }
+
+    /*
+     * Input and results of a lookup. Each handler owns one (or a few) and reuses it for every query,
+     * which is what keeps lookups allocation-free.
+     */
+    public static final class Match {
+        public final byte[] name = new byte[256]; // uncompressed wire format
+        public final ByteBuffer nameBuffer = ByteBuffer.wrap(name);
+        private final int[] labelStarts = new int[MAX_LABELS];
+        public int zone;
+        public int cut;
+        public int node;
+        public int encloser;
+    }
+}
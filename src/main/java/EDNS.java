@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+
+/*
+ * EDNS(0) OPT pseudo-record (RFC 6891).
+ *
+ * The OPT record lives in the additional section and reuses the resource record layout:
+ *
+ *   NAME      0x00 (root)
+ *   TYPE      41 (OPT)
+ *   CLASS     requestor's UDP payload size
+ *   TTL       extended RCODE (8 bits) | VERSION (8 bits) | DO (1 bit) | Z (15 bits)
+ *   RDLENGTH  length of the options that follow
+ *   RDATA     {OPTION-CODE, OPTION-LENGTH, OPTION-DATA} pairs
+ *
+ * The payload size is how large a UDP response the sender can receive, which lets responses
+ * bigger than 512 bytes go over UDP instead of being truncated and retried over TCP.
+ */
+public class EDNS {
+    public static final short TYPE_OPT = 41;
+    public static final int DEFAULT_UDP_SIZE = 1232; // fits in an IPv6 minimum MTU without fragmentation
+    public static final int MIN_UDP_SIZE = 512;      // smaller advertised sizes are treated as 512
+    public static final int EXTENDED_RCODE_BADVERS = 16;
+    public static final int OPT_RECORD_SIZE = 11;     // with no options
+
+    /*
+     * Writes an OPT record at the buffer's position. extendedRcode is the full 12 bit RCODE; its upper
+     * 8 bits go into the OPT record, the lower 4 bits belong in the header.
+     */
+    public static void writeOpt(ByteBuffer buffer, int udpSize, int extendedRcode) {
+        buffer.put((byte) 0);                      // NAME: root
+        buffer.putShort(TYPE_OPT);                 // TYPE
+        buffer.putShort((short) udpSize);          // CLASS: UDP payload size
+        buffer.put((byte) (extendedRcode >> 4));   // TTL: extended RCODE
+        buffer.put((byte) 0);                      //      VERSION 0
+        buffer.putShort((short) 0);                //      DO=0, Z=0
+        buffer.putShort((short) 0);                // RDLENGTH: no options
+    }
+
+    // Accessors for an OPT record whose TYPE field starts at typeOffset
+
+    public static int udpSize(ByteBuffer message, int typeOffset) {
+        return Math.max(MIN_UDP_SIZE, message.getShort(typeOffset + 2) & 0xFFFF);
+    }
+
+    public static int version(ByteBuffer message, int typeOffset) {
+        return message.get(typeOffset + 5) & 0xFF;
+    }
+}
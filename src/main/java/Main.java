@@ -1,54 +1,112 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.nio.file.Path;
 
 public class Main {
+  static final int DEFAULT_CACHE_MB = 64;
+  private static final int DEFAULT_MAX_QUEUED = 1024;
+  private static final int DEFAULT_TCP_IDLE_MS = 10000;
+  private static final int DEFAULT_TCP_MAX_CONNECTIONS = 1024;
+
   public static void main(String[] args) {
     setConfigWithArguments(args); // set's arguments in config map
-    // Creates a UDP server socket on port 2053
-    try (DatagramSocket serverSocket = new DatagramSocket(2053)) {
-      while (true) { // Continuous loop to handle incoming requests
-        // Create a buffer to store incoming data (DNS packets are typically <= 512
-        // bytes)
-        byte[] buf = new byte[512];
-        // Create a packet container for the incoming data
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        // Wait for and receive incoming packet
-        serverSocket.receive(packet);
-        // Log received request
-        System.out.println("Received request from client:");
-        System.out.println("Request length: " + packet.getLength());
-        System.out.println("Request dump: " + Utils.bytesToHex(packet.getData(), packet.getLength()));
-        System.out.println("Request ASCII " + Utils.binaryToAscii(packet.getData()));
-
-        // Create DNS header response
-        DNSQueryHandler queryHandler = new DNSQueryHandler(packet);
-        byte[] response = queryHandler.resolveQuery();
-
-        // Log response before sending
-        System.out.println("Sending response to client:");
-        System.out.println("Response length: " + response.length);
-        System.out.println("Response hex dump: " + Utils.bytesToHex(response, response.length));
-        System.out.println("Response ASCII " + Utils.binaryToAscii(response));
-
-        // Create response packet with client's address from original packet
-        DatagramPacket packetResponse = new DatagramPacket(
-            response,
-            response.length,
-            packet.getSocketAddress());
-        // Send the response back to client
-        serverSocket.send(packetResponse);
+    try {
+      // Settings from the --config file, if any; command line arguments win
+      Config.load();
+      // Answer cache shared by every request, bounded to --cache-mb megabytes, expired entries kept --serve-stale-s
+      DNSCache cache = new DNSCache(intConfig("cacheMb", DEFAULT_CACHE_MB) * 1024L * 1024L,
+          intConfig("serveStaleS", DNSCache.DEFAULT_STALE_SECONDS));
+      // Worker threads mostly wait on the upstream, so use more of them than there are cores
+      int threads = intConfig("threads", Runtime.getRuntime().availableProcessors() * 4);
+      int maxQueued = intConfig("maxQueued", DEFAULT_MAX_QUEUED);
+      // Query log, upstream (--resolver / --recursive), zones and rate limits; replaced on reload
+      DNSReloader reloader = new DNSReloader(cache);
+      // Warm restarts: --cache-file is loaded into the cache now (after the query log is configured) and rewritten every --cache-save-s and on shutdown
+      String cacheFile = Config.getConfig("cacheFile");
+      if (cacheFile != null) {
+        DNSCacheSnapshot snapshot = new DNSCacheSnapshot(cache, Path.of(cacheFile));
+        long loadStart = System.nanoTime();
+        int restored = snapshot.load();
+        DNSQueryLog.info("Restored " + restored + " cache entries in " + (System.nanoTime() - loadStart) / 1_000_000 + " ms");
+        snapshot.start(intConfig("cacheSaveS", DNSCacheSnapshot.DEFAULT_INTERVAL_SECONDS));
       }
+      // Prometheus metrics and POST /reload on http://127.0.0.1:<port>/, only when --metrics-port is given
+      String metricsPort = Config.getConfig("metricsPort");
+      if (metricsPort != null) new DNSMetricsServer(Integer.parseInt(metricsPort), reloader).start();
+      // Worker threads (and their handlers) shared by the UDP and TCP servers
+      DNSWorkerPool workers = new DNSWorkerPool(cache, reloader.settings(), intConfig("ednsUdpSize", EDNS.DEFAULT_UDP_SIZE), threads, maxQueued);
+      // Reloads when the --config file or its zone files change
+      reloader.start();
+      // Creates UDP and TCP servers on port 2053, UDP receives on this thread, both resolve on the workers.
+      // TCP is for responses that don't fit in a UDP packet and runs in the background
+      new DNSTcpServer(2053, workers, intConfig("tcpIdleMs", DEFAULT_TCP_IDLE_MS),
+          intConfig("tcpMaxConnections", DEFAULT_TCP_MAX_CONNECTIONS)).start();
+      DNSServer server = new DNSServer(2053, workers, intConfig("udpSockets", 1));
+      server.serve();
     } catch (IOException e) {
-      System.out.println("DNS server encountered IOException: " + e.getMessage());
+      DNSQueryLog.error("DNS server encountered IOException: " + e.getMessage());
     }
   }
 
+  private static int intConfig(String key, int defaultValue) {
+    return Config.getInt(key, defaultValue);
+  }
+
   private static void setConfigWithArguments(String[] args) {
     for (int i = 0; i < args.length; i++) {
       String arg = args[i];
-      if (arg.equalsIgnoreCase("--resolver")) {
+      if (arg.equalsIgnoreCase("--config")) {
+        Config.setConfig("config", args[++i]);
+      } else if (arg.equalsIgnoreCase("--resolver")) {
         Config.setConfig("resolver", args[++i]);
+      } else if (arg.equalsIgnoreCase("--recursive")) {
+        Config.setConfig("recursive", "true");
+      } else if (arg.equalsIgnoreCase("--root-hints")) {
+        Config.setConfig("rootHints", args[++i]);
+      } else if (arg.equalsIgnoreCase("--ns-port")) {
+        Config.setConfig("nsPort", args[++i]);
+      } else if (arg.equalsIgnoreCase("--cache-mb")) {
+        Config.setConfig("cacheMb", args[++i]);
+      } else if (arg.equalsIgnoreCase("--cache-file")) {
+        Config.setConfig("cacheFile", args[++i]);
+      } else if (arg.equalsIgnoreCase("--cache-save-s")) {
+        Config.setConfig("cacheSaveS", args[++i]);
+      } else if (arg.equalsIgnoreCase("--threads")) {
+        Config.setConfig("threads", args[++i]);
+      } else if (arg.equalsIgnoreCase("--max-queued")) {
+        Config.setConfig("maxQueued", args[++i]);
+      } else if (arg.equalsIgnoreCase("--upstream-sockets")) {
+        Config.setConfig("upstreamSockets", args[++i]);
+      } else if (arg.equalsIgnoreCase("--udp-sockets")) {
+        Config.setConfig("udpSockets", args[++i]);
+      } else if (arg.equalsIgnoreCase("--tcp-idle-ms")) {
+        Config.setConfig("tcpIdleMs", args[++i]);
+      } else if (arg.equalsIgnoreCase("--tcp-max-connections")) {
+        Config.setConfig("tcpMaxConnections", args[++i]);
+      } else if (arg.equalsIgnoreCase("--zone")) {
+        String zones = Config.getConfig("zones");
+        Config.setConfig("zones", zones == null ? args[++i] : zones + "," + args[++i]);
+      } else if (arg.equalsIgnoreCase("--log-level")) {
+        Config.setConfig("logLevel", args[++i]);
+      } else if (arg.equalsIgnoreCase("--log-sample")) {
+        Config.setConfig("logSample", args[++i]);
+      } else if (arg.equalsIgnoreCase("--log-file")) {
+        Config.setConfig("logFile", args[++i]);
+      } else if (arg.equalsIgnoreCase("--log-format")) {
+        Config.setConfig("logFormat", args[++i]);
+      } else if (arg.equalsIgnoreCase("--edns-udp-size")) {
+        Config.setConfig("ednsUdpSize", args[++i]);
+      } else if (arg.equalsIgnoreCase("--serve-stale-s")) {
+        Config.setConfig("serveStaleS", args[++i]);
+      } else if (arg.equalsIgnoreCase("--rate-limit")) {
+        Config.setConfig("rateLimit", args[++i]);
+      } else if (arg.equalsIgnoreCase("--rate-burst")) {
+        Config.setConfig("rateBurst", args[++i]);
+      } else if (arg.equalsIgnoreCase("--rrl")) {
+        Config.setConfig("rrl", args[++i]);
+      } else if (arg.equalsIgnoreCase("--rrl-slip")) {
+        Config.setConfig("rrlSlip", args[++i]);
+      } else if (arg.equalsIgnoreCase("--metrics-port")) {
+        Config.setConfig("metricsPort", args[++i]);
       }
     }
   }
@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Writes domain names into a message using RFC 1035 compression (section 4.1.4).
+ *
+ * Every name suffix written to the message is remembered in a small hash table:
+ * suffix -> offset where it starts in the message. When a new name is written, its suffixes are
+ * looked up from the longest to the shortest; labels are written out until a suffix is found that
+ * already exists in the message, and that suffix is replaced by a 2 byte pointer (0xC000 | offset).
+ *
+ * Example, answers for "api.codecrafters.io" after the question "codecrafters.io" at offset 12:
+ *   0x03 api 0xC00C         instead of        0x03 api 0x0c codecrafters 0x02 io 0x00
+ *
+ * One compressor is owned by each DNSQueryHandler (so by one thread) and reset per message. The
+ * table is reset by bumping a generation number, so compressing never allocates.
+ */
+public class NameCompressor {
+    private static final int TABLE_SIZE = 256;          // power of two, open addressing
+    private static final int MAX_ENTRIES = TABLE_SIZE * 3 / 4;
+    private static final int MAX_POINTER_OFFSET = 0x3FFF; // pointers only have 14 bits
+    private static final int MAX_LABELS = 128;            // a 255 byte name has at most 127 labels + root
+
+    private final int[] offsets = new int[TABLE_SIZE];
+    private final int[] hashes = new int[TABLE_SIZE];
+    private final int[] generations = new int[TABLE_SIZE];
+    private int generation = 1;
+    private int entries;
+
+    // Scratch space for the name being written: where each label starts and the hash of each suffix
+    private final int[] labelStarts = new int[MAX_LABELS];
+    private final int[] suffixHashes = new int[MAX_LABELS];
+    private final byte[] scratch = new byte[256];
+    private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+    // Forget every name of the previous message
+    public void reset() {
+        generation++;
+        entries = 0;
+        if (generation == 0) { // wrapped around, stamps from 2^32 messages ago could look current
+            Arrays.fill(generations, 0);
+            generation = 1;
+        }
+    }
+
+    /*
+     * Writes the uncompressed name starting at name[start] at the message's position, compressed
+     * against the names already in the message. Returns the index right after the name in `name`.
+     */
+    public int writeName(ByteBuffer message, byte[] name, int start) {
+        // Forward pass: find the labels
+        int labels = 0;
+        int index = start;
+        while (name[index] != 0) {
+            labelStarts[labels++] = index;
+            index += name[index] + 1;
+        }
+        int end = index + 1;
+
+        // Backward pass: hash of every suffix, built from the root up
+        int hash = 0;
+        for (int i = labels - 1; i >= 0; i--) {
+            hash = hashLabel(hash, name, labelStarts[i]);
+            suffixHashes[i] = hash;
+        }
+
+        for (int i = 0; i < labels; i++) {
+            int target = find(message, suffixHashes[i], name, labelStarts[i]);
+            if (target >= 0) {
+                message.putShort((short) (0xC000 | target));
+                return end;
+            }
+            remember(message.position(), suffixHashes[i]);
+            int labelLength = name[labelStarts[i]];
+            message.put(name, labelStarts[i], labelLength + 1);
+        }
+        message.put((byte) 0);
+        return end;
+    }
+
+    /*
+     * Same as writeName() for a name that lives in another message (e.g. the query) and may itself
+     * be compressed there. Returns the offset right after the name in the source message.
+     */
+    public int copyName(ByteBuffer source, int offset, ByteBuffer message) {
+        scratchBuffer.clear();
+        int next = DNSName.copy(source, offset, scratchBuffer);
+        writeName(message, scratch, 0);
+        return next;
+    }
+
+    /*
+     * Makes an uncompressed name that was put into the message without going through the compressor
+     * (e.g. inside pre-encoded RDATA) available as a pointer target for the names written after it.
+     */
+    public void addName(ByteBuffer message, int offset) {
+        scratchBuffer.clear();
+        DNSName.copy(message, offset, scratchBuffer);
+        int labels = 0;
+        int index = 0;
+        while (scratch[index] != 0) {
+            labelStarts[labels++] = index;
+            index += scratch[index] + 1;
+        }
+        int hash = 0;
+        for (int i = labels - 1; i >= 0; i--) {
+            hash = hashLabel(hash, scratch, labelStarts[i]);
+            suffixHashes[i] = hash;
+        }
+        for (int i = 0; i < labels; i++) {
+            if (find(message, suffixHashes[i], scratch, labelStarts[i]) >= 0) return; // shorter suffixes are known too
+            remember(offset + labelStarts[i], suffixHashes[i]);
+        }
+    }
+
+    private int find(ByteBuffer message, int hash, byte[] name, int start) {
+        for (int slot = hash & (TABLE_SIZE - 1); generations[slot] == generation; slot = (slot + 1) & (TABLE_SIZE - 1)) {
+            if (hashes[slot] == hash && matches(message, offsets[slot], name, start)) {
+                return offsets[slot];
+            }
+        }
+        return -1;
+    }
+
+    private void remember(int offset, int hash) {
+        if (offset > MAX_POINTER_OFFSET || entries >= MAX_ENTRIES) return;
+        int slot = hash & (TABLE_SIZE - 1);
+        while (generations[slot] == generation) slot = (slot + 1) & (TABLE_SIZE - 1);
+        generations[slot] = generation;
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        entries++;
+    }
+
+    // Compares name[start..] with the (possibly compressed) name at messageOffset, ignoring case
+    private static boolean matches(ByteBuffer message, int messageOffset, byte[] name, int start) {
+        int m = messageOffset;
+        int n = start;
+        while (true) {
+            int length = message.get(m) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                m = ((length & 0x3F) << 8) | (message.get(m + 1) & 0xFF);
+                continue;
+            }
+            if (length != name[n]) return false;
+            if (length == 0) return true;
+            for (int i = 1; i <= length; i++) {
+                if (DNSName.toLower(message.get(m + i)) != DNSName.toLower(name[n + i])) return false;
+            }
+            m += length + 1;
+            n += length + 1;
+        }
+    }
+
+    private static int hashLabel(int hash, byte[] name, int labelStart) {
+        int length = name[labelStart];
+        int h = hash * 31 + length;
+        for (int i = 1; i <= length; i++) {
+            h = h * 31 + DNSName.toLower(name[labelStart + i]);
+        }
+        return h ^ (h >>> 16);
+    }
+}
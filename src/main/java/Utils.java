@@ -3,18 +3,38 @@ public class Utils {
         return bytesToHex(bytes, bytes.length);
     }
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     public static String bytesToHex(byte[] bytes, int length) {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder(length * 3 + length / 16);
         for (int i = 0; i < length; i++) {
-            sb.append(String.format("%02X ", bytes[i]));
+            appendHex(sb, bytes[i]).append(' ');
             if ((i + 1) % 16 == 0) sb.append("\n");
         }
         return sb.toString();
     }
 
+    // Compact variant without separators, e.g. "1234010000"
+    public static String hex(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            appendHex(sb, bytes[i]);
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder appendHex(StringBuilder sb, byte b) {
+        return sb.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+
     public static String binaryToAscii(byte[] bytes) {
+        return binaryToAscii(bytes, bytes.length);
+    }
+
+    public static String binaryToAscii(byte[] bytes, int length) {
         StringBuilder result = new StringBuilder();
-        for (byte b : bytes) {
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
             if (b >= 32 && b < 127) { // Printable ASCII range
                 result.append((char)b);
             } else {